@@ -0,0 +1,56 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+/**
+ * Runs against a throwaway messages database that's deleted afterwards, so
+ * that tests writing messages don't leave anything behind on the device.
+ */
+public abstract class DatabaseTestCase extends TextSecureTestCase {
+  private static final String TAG = DatabaseTestCase.class.getSimpleName();
+
+  private static final String DATABASE_NAME = "messages-test.db";
+
+  protected static final String SENDER = "+15555550110";
+
+  protected Context        context;
+  protected SmsDatabase    smsDatabase;
+  protected ThreadDatabase threadDatabase;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context = getInstrumentation().getTargetContext();
+    context.deleteDatabase(DATABASE_NAME);
+    DatabaseFactory.getInstance(context).setDatabase(context, DATABASE_NAME);
+
+    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    threadDatabase = DatabaseFactory.getThreadDatabase(context);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    DatabaseFactory.getInstance(context).reset(context);
+    context.deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  protected long insert(int index) {
+    return smsDatabase.insertMessageInbox(message(index)).second;
+  }
+
+  protected IncomingTextMessage message(int index) {
+    return new IncomingTextMessage(SENDER, 1, 1000000000000L + index * 1000L, "message " + index,
+                                   Optional.<TextSecureGroup>absent());
+  }
+
+  protected static void logRate(String label, int count, long nanos) {
+    Log.w(TAG, label + ": " + count + " in " + (nanos / 1000000) + "ms, " + (count * 1000000000L / Math.max(nanos, 1)) + "/s");
+  }
+}
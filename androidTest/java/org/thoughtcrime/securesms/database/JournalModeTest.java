@@ -0,0 +1,108 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JournalModeTest extends DatabaseTestCase {
+  private static final String TAG = JournalModeTest.class.getSimpleName();
+
+  private static final String DATABASE_NAME = "journal-mode-test.db";
+  private static final int    INSERTS       = 2000;
+
+  public void testWriteAheadLogging() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+    boolean walEnabled = TextSecurePreferences.isDatabaseWalEnabled(context);
+
+    context.deleteDatabase(DATABASE_NAME);
+    SQLiteOpenHelper helper = new TestHelper(context);
+
+    try {
+      SQLiteDatabase db = helper.getWritableDatabase();
+
+      assertThat(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)).isEqualToIgnoringCase(walEnabled ? "wal" : "delete");
+
+      if (walEnabled) {
+        assertThat(DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null)).isEqualTo(1000);
+      }
+
+      db.execSQL("INSERT INTO test (value) VALUES ('value')");
+      JournalMode.checkpoint(db);
+
+      assertThat(DatabaseUtils.queryNumEntries(db, "test")).isEqualTo(1);
+    } finally {
+      helper.close();
+      context.deleteDatabase(DATABASE_NAME);
+    }
+  }
+
+  public void testReadLatencyDuringInsertsBenchmark() throws Exception {
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i=0;i<INSERTS;i++) insert(i);
+      }
+    };
+
+    List<Long> latencies = new ArrayList<>();
+
+    writer.start();
+
+    while (writer.isAlive()) {
+      long   start  = System.nanoTime();
+      Cursor cursor = threadDatabase.getConversationList();
+
+      try {
+        cursor.getCount();
+      } finally {
+        cursor.close();
+      }
+
+      latencies.add((System.nanoTime() - start) / 1000);
+    }
+
+    writer.join();
+
+    if (latencies.isEmpty()) return;
+
+    Collections.sort(latencies);
+
+    Log.w(TAG, "Conversation list reads during " + INSERTS + " inserts: " + latencies.size() + " reads, " +
+               "p50 " + latencies.get(latencies.size() / 2) + "us, " +
+               "p99 " + latencies.get(latencies.size() * 99 / 100) + "us, " +
+               "max " + latencies.get(latencies.size() - 1) + "us");
+  }
+
+  private static class TestHelper extends SQLiteOpenHelper {
+    public TestHelper(Context context) {
+      super(context, DATABASE_NAME, null, 1);
+      JournalMode.configure(context, this);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE test (_id INTEGER PRIMARY KEY, value TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      JournalMode.onOpen(db);
+    }
+  }
+}
@@ -1,15 +1,20 @@
 package org.thoughtcrime.securesms.database;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.util.Log;
 
 import org.thoughtcrime.securesms.TextSecureTestCase;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 
 import ws.com.google.android.mms.pdu.PduPart;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyLong;
@@ -23,7 +28,16 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PartDatabaseTest extends TextSecureTestCase {
+  private static final String TAG = PartDatabaseTest.class.getSimpleName();
+
   private static final long PART_ID = 1L;
+  private static final int  THREADS = 40;
+  private static final int  PARTS   = 20000;
+
+  private static final String LEGACY_IMAGES_QUERY = "SELECT part._id, part.ct, part.aspect_ratio, mms.date_received * 1000 AS date_received, mms.address " +
+                                                    "FROM part LEFT JOIN mms ON part.mid = mms._id " +
+                                                    "WHERE mid IN (SELECT _id FROM mms WHERE thread_id = ?) AND ct LIKE 'image/%' " +
+                                                    "ORDER BY part._id DESC";
 
   private PartDatabase database;
 
@@ -47,10 +61,54 @@ public class PartDatabaseTest extends TextSecureTestCase {
     doNothing().when(database).updatePartThumbnail(any(MasterSecret.class), anyLong(), any(PduPart.class), any(InputStream.class), anyFloat());
 
     try {
-      database.new ThumbnailFetchCallable(mock(MasterSecret.class), PART_ID).call();
+      database.getThumbnailStream(mock(MasterSecret.class), PART_ID);
       throw new AssertionError("didn't try to generate thumbnail");
-    } catch (FileNotFoundException fnfe) {
-      // success
+    } catch (IOException ioe) {
+      assertThat(ioe.getCause().getCause()).isInstanceOf(FileNotFoundException.class);
+    }
+  }
+
+  public void testImagesQueryBenchmark() throws Exception {
+    SQLiteDatabase db = SQLiteDatabase.create(null);
+
+    try {
+      db.execSQL(MmsDatabase.CREATE_TABLE);
+      db.execSQL(PartDatabase.CREATE_TABLE);
+      for (String index : MmsDatabase.CREATE_INDEXS) db.execSQL(index);
+      for (String index : PartDatabase.CREATE_INDEXS) db.execSQL(index);
+
+      db.beginTransaction();
+      for (int i=0;i<PARTS;i++) {
+        long   threadId    = i % THREADS;
+        String contentType = i % 3 == 0 ? "image/jpeg" : (i % 3 == 1 ? "text/plain" : "application/smil");
+
+        db.execSQL("INSERT INTO mms (_id, thread_id, date, date_received) VALUES (?, ?, ?, ?)",
+                   new Object[] {i, threadId, i, i});
+        db.execSQL("INSERT INTO part (mid, ct, thread_id, media_class) VALUES (?, ?, ?, ?)",
+                   new Object[] {i, contentType, threadId, contentType.startsWith("image/") ? 1 : 0});
+      }
+      db.setTransactionSuccessful();
+      db.endTransaction();
+
+      long legacy  = time(db, LEGACY_IMAGES_QUERY);
+      long indexed = time(db, PartDatabase.IMAGES_QUERY);
+
+      Log.w(TAG, "Images for one of " + THREADS + " threads over " + PARTS + " parts: " +
+                 (legacy / 1000) + "us with the mms subquery, " + (indexed / 1000) + "us with the media index");
+    } finally {
+      db.close();
+    }
+  }
+
+  private long time(SQLiteDatabase db, String query) {
+    long   start  = System.nanoTime();
+    Cursor cursor = db.rawQuery(query, new String[] {"7"});
+
+    try {
+      assertThat(cursor.getCount()).isGreaterThan(0);
+      return System.nanoTime() - start;
+    } finally {
+      cursor.close();
     }
   }
 
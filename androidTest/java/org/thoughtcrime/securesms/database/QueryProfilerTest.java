@@ -0,0 +1,83 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryProfilerTest extends TextSecureTestCase {
+
+  public void testShapesIgnoreLiterals() throws Exception {
+    assertThat(QueryProfiler.getShape("SELECT * FROM sms WHERE thread_id = 12 AND address = 'o''brien'"))
+        .isEqualTo("SELECT * FROM sms WHERE thread_id = ? AND address = ?");
+    assertThat(QueryProfiler.getShape("DELETE FROM part WHERE mms_id IN (1, 2,3)"))
+        .isEqualTo(QueryProfiler.getShape("DELETE FROM part WHERE mms_id IN (?,?)"));
+    assertThat(QueryProfiler.getShape("SELECT  _id\n FROM mms_addresses")).isEqualTo("SELECT _id FROM mms_addresses");
+  }
+
+  public void testQueriesAreRecorded() throws Exception {
+    String         table = "profiled_" + System.nanoTime();
+    String         shape = "SELECT value FROM " + table + " WHERE _id = ?";
+    SQLiteDatabase db    = SQLiteDatabase.create(QueryProfiler.getInstance());
+
+    QueryProfiler.getInstance().setEnabled(true);
+
+    try {
+      db.execSQL("CREATE TABLE " + table + " (_id INTEGER PRIMARY KEY, value TEXT);");
+
+      query(db, "SELECT value FROM " + table + " WHERE _id = 42");
+      query(db, "SELECT value FROM " + table + " WHERE _id = 42");
+      query(db, "SELECT value FROM " + table + " WHERE _id = 43");
+
+      assertThat(getReportLine(shape)).startsWith("3x ");
+    } finally {
+      db.close();
+      resetEnabled();
+    }
+  }
+
+  public void testDisabledProfilerRecordsNothing() throws Exception {
+    String         table = "unprofiled_" + System.nanoTime();
+    SQLiteDatabase db    = SQLiteDatabase.create(QueryProfiler.getInstance());
+
+    QueryProfiler.getInstance().setEnabled(false);
+
+    try {
+      db.execSQL("CREATE TABLE " + table + " (_id INTEGER PRIMARY KEY, value TEXT);");
+      query(db, "SELECT value FROM " + table + " WHERE _id = 42");
+
+      assertThat(QueryProfiler.getInstance().getReport()).isEqualTo("Query profiling is off");
+
+      QueryProfiler.getInstance().setEnabled(true);
+      assertThat(QueryProfiler.getInstance().getReport()).doesNotContain(table);
+    } finally {
+      db.close();
+      resetEnabled();
+    }
+  }
+
+  private void query(SQLiteDatabase db, String sql) {
+    Cursor cursor = db.rawQuery(sql, null);
+
+    try {
+      assertThat(cursor.getCount()).isEqualTo(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private String getReportLine(String shape) {
+    for (String line : QueryProfiler.getInstance().getReport().split("\n")) {
+      if (line.endsWith(": " + shape)) return line;
+    }
+
+    throw new AssertionError("no report line for " + shape);
+  }
+
+  private void resetEnabled() {
+    QueryProfiler.getInstance().setEnabled(TextSecurePreferences.isQueryProfilingEnabled(getInstrumentation().getTargetContext()));
+  }
+}
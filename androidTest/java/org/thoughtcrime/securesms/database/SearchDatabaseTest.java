@@ -0,0 +1,19 @@
+package org.thoughtcrime.securesms.database;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SearchDatabaseTest extends TextSecureTestCase {
+
+  public void testMatchQueryPrefixesEveryWord() {
+    assertThat(SearchDatabase.getMatchQuery("jo")).isEqualTo("jo*");
+    assertThat(SearchDatabase.getMatchQuery("  john   smith ")).isEqualTo("john* smith*");
+  }
+
+  public void testMatchQueryStripsSyntax() {
+    assertThat(SearchDatabase.getMatchQuery("\"john\" OR -smith*")).isEqualTo("john* smith*");
+    assertThat(SearchDatabase.getMatchQuery("(555)")).isEqualTo("555*");
+    assertThat(SearchDatabase.getMatchQuery(" * ")).isNull();
+  }
+}
@@ -0,0 +1,117 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the statement forms the message tables could use, to check
+ * whether a cache of compiled statements on top of the connection's own
+ * would pay for itself.
+ */
+public class StatementBenchmarkTest extends DatabaseTestCase {
+
+  private static final int  ITERATIONS = 2000;
+  private static final long MASK_OFF   = MmsSmsColumns.Types.BASE_TYPE_MASK;
+
+  private static final String INSERT_SQL = "INSERT INTO " + SmsDatabase.TABLE_NAME + " (" +
+                                           SmsDatabase.THREAD_ID + ", " + SmsDatabase.ADDRESS + ", " +
+                                           SmsDatabase.DATE_RECEIVED + ", " + SmsDatabase.TYPE + ", " +
+                                           SmsDatabase.BODY + ") VALUES (?, ?, ?, ?, ?)";
+
+  private static final String UPDATE_TYPE_SQL = "UPDATE " + SmsDatabase.TABLE_NAME + " SET " + SmsDatabase.TYPE +
+                                                " = (" + SmsDatabase.TYPE + " & ? | ?) WHERE " + SmsDatabase.ID + " = ?";
+
+  private SQLiteDatabase db;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    db = smsDatabase.databaseHelper.getWritableDatabase();
+  }
+
+  public void testInsertBenchmark() throws Exception {
+    long start = System.nanoTime();
+    for (int i=0;i<ITERATIONS;i++) db.insert(SmsDatabase.TABLE_NAME, null, values(i));
+    logRate("Inserts with SQLiteDatabase.insert()", ITERATIONS, System.nanoTime() - start);
+
+    SQLiteStatement statement = db.compileStatement(INSERT_SQL);
+
+    try {
+      start = System.nanoTime();
+
+      for (int i=0;i<ITERATIONS;i++) {
+        statement.clearBindings();
+        statement.bindLong(1, 1);
+        statement.bindString(2, SENDER);
+        statement.bindLong(3, 1000000000000L + i);
+        statement.bindLong(4, 20);
+        statement.bindString(5, "message " + i);
+        statement.executeInsert();
+      }
+
+      logRate("Inserts with a reused compiled statement", ITERATIONS, System.nanoTime() - start);
+    } finally {
+      statement.close();
+    }
+
+    assertThat(DatabaseUtils.queryNumEntries(db, SmsDatabase.TABLE_NAME)).isEqualTo(2 * ITERATIONS);
+  }
+
+  public void testTypeUpdateBenchmark() throws Exception {
+    long firstId = db.insert(SmsDatabase.TABLE_NAME, null, values(0));
+    for (int i=1;i<ITERATIONS;i++) db.insert(SmsDatabase.TABLE_NAME, null, values(i));
+
+    long start = System.nanoTime();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      db.execSQL("UPDATE " + SmsDatabase.TABLE_NAME + " SET " + SmsDatabase.TYPE + " = (" + SmsDatabase.TYPE +
+                 " & " + (0xFFFFFFFFL - MASK_OFF) + " | " + (i % MASK_OFF) + ") WHERE " + SmsDatabase.ID + " = ?",
+                 new Object[] {firstId + i});
+    }
+
+    logRate("Type updates with inline masks", ITERATIONS, System.nanoTime() - start);
+
+    start = System.nanoTime();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      db.execSQL(UPDATE_TYPE_SQL, new Object[] {0xFFFFFFFFL - MASK_OFF, (i + 1) % MASK_OFF, firstId + i});
+    }
+
+    logRate("Type updates with bound masks", ITERATIONS, System.nanoTime() - start);
+
+    SQLiteStatement statement = db.compileStatement(UPDATE_TYPE_SQL);
+
+    try {
+      start = System.nanoTime();
+
+      for (int i=0;i<ITERATIONS;i++) {
+        statement.bindLong(1, 0xFFFFFFFFL - MASK_OFF);
+        statement.bindLong(2, (i + 2) % MASK_OFF);
+        statement.bindLong(3, firstId + i);
+        statement.execute();
+      }
+
+      logRate("Type updates with a reused compiled statement", ITERATIONS, System.nanoTime() - start);
+    } finally {
+      statement.close();
+    }
+
+    assertThat(DatabaseUtils.longForQuery(db, "SELECT " + SmsDatabase.TYPE + " FROM " + SmsDatabase.TABLE_NAME +
+                                              " WHERE " + SmsDatabase.ID + " = ?",
+                                          new String[] {String.valueOf(firstId + 7)})).isEqualTo(9);
+  }
+
+  private ContentValues values(int index) {
+    ContentValues values = new ContentValues(5);
+    values.put(SmsDatabase.THREAD_ID, 1);
+    values.put(SmsDatabase.ADDRESS, SENDER);
+    values.put(SmsDatabase.DATE_RECEIVED, 1000000000000L + index);
+    values.put(SmsDatabase.TYPE, 20);
+    values.put(SmsDatabase.BODY, "message " + index);
+    return values;
+  }
+}
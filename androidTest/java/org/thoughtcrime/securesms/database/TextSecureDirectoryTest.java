@@ -0,0 +1,78 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TextSecureDirectoryTest extends TextSecureTestCase {
+  private static final String TAG = TextSecureDirectoryTest.class.getSimpleName();
+
+  private static final String DATABASE_NAME   = "directory-test.db";
+  private static final String ACTIVE_NUMBER   = "+15555550100";
+  private static final String INACTIVE_NUMBER = "+15555550101";
+  private static final String UNKNOWN_NUMBER  = "+15555550102";
+  private static final int    ITERATIONS      = 1000;
+
+  private Context             context;
+  private TextSecureDirectory directory;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context   = getInstrumentation().getTargetContext();
+    directory = TextSecureDirectory.getInstance(context);
+
+    context.deleteDatabase(DATABASE_NAME);
+    directory.setDatabase(context, DATABASE_NAME);
+
+    ContactTokenDetails active = new ContactTokenDetails();
+    active.setNumber(ACTIVE_NUMBER);
+
+    List<ContactTokenDetails> activeTokens = new LinkedList<>();
+    activeTokens.add(active);
+
+    directory.setNumbers(activeTokens, Collections.singletonList(INACTIVE_NUMBER));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    directory.reset(context);
+    context.deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  public void testCachedLookupsMatchDatabase() throws Exception {
+    assertThat(directory.isActiveNumber(ACTIVE_NUMBER)).isEqualTo(directory.isActiveNumberUncached(ACTIVE_NUMBER));
+    assertThat(directory.isActiveNumber(INACTIVE_NUMBER)).isEqualTo(directory.isActiveNumberUncached(INACTIVE_NUMBER));
+    assertThat(directory.isActiveNumber(ACTIVE_NUMBER)).isTrue();
+    assertThat(directory.isActiveNumber(INACTIVE_NUMBER)).isFalse();
+    assertThat(directory.getRelay(INACTIVE_NUMBER)).isNull();
+
+    try {
+      directory.isActiveNumber(UNKNOWN_NUMBER);
+      throw new AssertionError("unknown number was found in directory");
+    } catch (NotInDirectoryException e) {
+      // success
+    }
+  }
+
+  public void testLookupLatencyBenchmark() throws Exception {
+    long start = System.nanoTime();
+    for (int i=0;i<ITERATIONS;i++) directory.isActiveNumberUncached(ACTIVE_NUMBER);
+    long uncached = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0;i<ITERATIONS;i++) directory.isActiveNumber(ACTIVE_NUMBER);
+    long cached = System.nanoTime() - start;
+
+    Log.w(TAG, "isActiveNumber: sqlite " + (uncached / ITERATIONS) + "ns, cached " + (cached / ITERATIONS) + "ns per lookup");
+  }
+}
@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.database;
+
+import org.thoughtcrime.securesms.database.model.ThreadRecord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadDatabaseTest extends DatabaseTestCase {
+
+  private static final int MESSAGES   = 50;
+  private static final int ITERATIONS = 500;
+
+  public void testIncrementalSummaryMatchesRecount() throws Exception {
+    long threadId  = insert(0);
+    long messageId = -1;
+
+    for (int i=1;i<MESSAGES;i++) {
+      long id = smsDatabase.insertMessageInbox(message(i)).first;
+      if (i == MESSAGES / 2) messageId = id;
+    }
+
+    assertSummaryMatches(threadId, "message " + (MESSAGES - 1));
+
+    smsDatabase.deleteMessage(messageId);
+    assertSummaryMatches(threadId, "message " + (MESSAGES - 1));
+
+    threadDatabase.update(threadId);
+    assertSummaryMatches(threadId, "message " + (MESSAGES - 1));
+  }
+
+  public void testIncrementalSummaryBenchmark() throws Exception {
+    long threadId = insert(0);
+
+    long start = System.nanoTime();
+    for (int i=1;i<=ITERATIONS;i++) insert(i);
+    logRate("Inserts with incremental summary", ITERATIONS, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i=0;i<ITERATIONS;i++) threadDatabase.update(threadId);
+    logRate("Full summary recomputes", ITERATIONS, System.nanoTime() - start);
+  }
+
+  private void assertSummaryMatches(long threadId, String snippet) {
+    ThreadDatabase.Reader reader = threadDatabase.readerFor(threadDatabase.getConversationList(), null);
+    ThreadRecord          record;
+
+    try {
+      while ((record = reader.getNext()) != null) {
+        if (record.getThreadId() != threadId) continue;
+
+        assertThat(record.getCount()).isEqualTo(DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId));
+        assertThat(record.getBody().getBody()).isEqualTo(snippet);
+        return;
+      }
+
+      throw new AssertionError("thread " + threadId + " not found");
+    } finally {
+      reader.close();
+    }
+  }
+}
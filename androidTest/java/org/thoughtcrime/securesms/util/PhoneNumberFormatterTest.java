@@ -8,6 +8,9 @@ import org.thoughtcrime.securesms.TextSecureTestCase;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class PhoneNumberFormatterTest extends TextSecureTestCase {
@@ -28,6 +31,17 @@ public class PhoneNumberFormatterTest extends TextSecureTestCase {
     }
   }
 
+  public void testFormatNumbersBatch() throws Exception {
+    Map<String, String> formatted = PhoneNumberFormatter.formatNumbers(Arrays.asList("(555) 555-5555",
+                                                                                     "person@domain.com",
+                                                                                     "(123) 555-5555"),
+                                                                       LOCAL_NUMBER);
+
+    assertThat(formatted).hasSize(2);
+    assertThat(formatted.get("(555) 555-5555")).isEqualTo(LOCAL_NUMBER);
+    assertThat(formatted.get("(123) 555-5555")).isEqualTo(PhoneNumberFormatter.formatNumber("(123) 555-5555", LOCAL_NUMBER));
+  }
+
   @Override
   public void setUp() throws Exception {
     super.setUp();
@@ -23,7 +23,12 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Phone number formats are a pain.
@@ -35,6 +40,21 @@ public class PhoneNumberFormatter {
 
   private static final String TAG = PhoneNumberFormatter.class.getSimpleName();
 
+  private static final int    MAX_CACHE_SIZE = 2000;
+  private static final String INVALID_PREFIX = "\u0000";
+
+  private static final Map<String, String> formattedCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_CACHE_SIZE;
+    }
+  };
+
+  private static final AtomicLong cacheHits   = new AtomicLong(0);
+  private static final AtomicLong cacheMisses = new AtomicLong(0);
+
+  private static volatile String[] localRegion = new String[] {null, null};
+
   public static boolean isValidNumber(String number) {
     return number.matches("^\\+[0-9]{10,}");
   }
@@ -71,6 +91,100 @@ public class PhoneNumberFormatter {
 
   public static String formatNumber(String number, String localNumber)
       throws InvalidNumberException
+  {
+    return formatNumber(number, localNumber, true);
+  }
+
+  /**
+   * Formats many numbers against the same local number. Results found in the
+   * cache are used, but new ones aren't added, so that formatting a whole
+   * address book doesn't evict the numbers that are in active use.
+   *
+   * @return a map of each valid input number to its E164 form. Invalid
+   * numbers are left out.
+   */
+  public static Map<String, String> formatNumbers(Collection<String> numbers, String localNumber) {
+    Map<String, String> results = new HashMap<>(numbers.size());
+
+    for (String number : numbers) {
+      try {
+        results.put(number, formatNumber(number, localNumber, false));
+      } catch (InvalidNumberException e) {
+        Log.w(TAG, "Invalid number: " + number);
+      }
+    }
+
+    return results;
+  }
+
+  public static String getCacheStats() {
+    long hits   = cacheHits.get();
+    long misses = cacheMisses.get();
+    long total  = hits + misses;
+
+    return "number format cache: hits " + hits + ", misses " + misses + ", " +
+           "hit rate " + (total == 0 ? 0 : (hits * 100 / total)) + "%";
+  }
+
+  /**
+   * Invalid numbers are cached too, as their error message behind a prefix
+   * that can't start a formatted number.
+   */
+  private static String formatNumber(String number, String localNumber, boolean cache)
+      throws InvalidNumberException
+  {
+    String cacheKey = number + "\u0000" + localNumber;
+    String result;
+
+    synchronized (formattedCache) {
+      result = formattedCache.get(cacheKey);
+    }
+
+    if (result != null) {
+      cacheHits.incrementAndGet();
+
+      if (result.startsWith(INVALID_PREFIX)) throw new InvalidNumberException(result.substring(INVALID_PREFIX.length()));
+      else                                   return result;
+    }
+
+    cacheMisses.incrementAndGet();
+
+    try {
+      result = formatNumberUncached(number, localNumber);
+    } catch (InvalidNumberException e) {
+      if (cache) putCached(cacheKey, INVALID_PREFIX + e.getMessage());
+      throw e;
+    }
+
+    if (cache) putCached(cacheKey, result);
+    return result;
+  }
+
+  private static void putCached(String cacheKey, String result) {
+    synchronized (formattedCache) {
+      formattedCache.put(cacheKey, result);
+    }
+  }
+
+  private static String getLocalRegionCode(PhoneNumberUtil util, String localNumber)
+      throws NumberParseException
+  {
+    String[] cached = localRegion;
+
+    if (localNumber.equals(cached[0])) {
+      return cached[1];
+    }
+
+    String regionCode = util.getRegionCodeForNumber(util.parse(localNumber, null));
+    Log.w(TAG, "Got local CC: " + regionCode);
+
+    localRegion = new String[] {localNumber, regionCode};
+
+    return regionCode;
+  }
+
+  private static String formatNumberUncached(String number, String localNumber)
+      throws InvalidNumberException
   {
     if (number.contains("@")) {
       throw new InvalidNumberException("Possible attempt to use email address.");
@@ -86,13 +200,10 @@ public class PhoneNumberFormatter {
       return number;
 
     try {
-      PhoneNumberUtil util          = PhoneNumberUtil.getInstance();
-      PhoneNumber localNumberObject = util.parse(localNumber, null);
-
-      String localCountryCode       = util.getRegionCodeForNumber(localNumberObject);
-      Log.w(TAG, "Got local CC: " + localCountryCode);
+      PhoneNumberUtil util             = PhoneNumberUtil.getInstance();
+      String          localCountryCode = getLocalRegionCode(util, localNumber);
 
-      PhoneNumber numberObject      = util.parse(number, localCountryCode);
+      PhoneNumber numberObject         = util.parse(number, localCountryCode);
       return util.format(numberObject, PhoneNumberFormat.E164);
     } catch (NumberParseException e) {
       Log.w(TAG, e);
@@ -16,17 +16,25 @@
  */
 package org.thoughtcrime.securesms;
 
+import android.annotation.TargetApi;
 import android.app.Application;
 import android.content.Context;
+import android.os.Build;
 
+import org.thoughtcrime.securesms.contacts.AvatarCache;
 import org.thoughtcrime.securesms.crypto.PRNGFixes;
+import org.thoughtcrime.securesms.database.QueryProfiler;
 import org.thoughtcrime.securesms.dependencies.AxolotlStorageModule;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule;
 import org.thoughtcrime.securesms.jobs.GcmRefreshJob;
+import org.thoughtcrime.securesms.jobs.PartCleanupJob;
+import org.thoughtcrime.securesms.jobs.ThreadDeletionJob;
 import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
 import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.thoughtcrime.securesms.mms.ThumbnailCache;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
@@ -56,9 +64,28 @@ public class ApplicationContext extends Application implements DependencyInjecto
   @Override
   public void onCreate() {
     initializeRandomNumberFix();
+    initializeQueryProfiler();
     initializeDependencyInjection();
     initializeJobManager();
     initializeGcmCheck();
+    initializePartCleanup();
+    initializeThreadDeletion();
+    initializeRecipientCache();
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    ThumbnailCache.getInstance().onTrimMemory(level);
+    AvatarCache.getInstance().onTrimMemory(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    ThumbnailCache.getInstance().clear();
+    AvatarCache.getInstance().clear();
   }
 
   @Override
@@ -103,4 +130,22 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
+  private void initializeQueryProfiler() {
+    QueryProfiler.getInstance().setEnabled(TextSecurePreferences.isQueryProfilingEnabled(this));
+  }
+
+  private void initializePartCleanup() {
+    if (PartCleanupJob.isCleanupDue(this)) {
+      this.jobManager.add(new PartCleanupJob(this));
+    }
+  }
+
+  private void initializeThreadDeletion() {
+    this.jobManager.add(new ThreadDeletionJob(this));
+  }
+
+  private void initializeRecipientCache() {
+    RecipientFactory.warmCache(this);
+  }
+
 }
@@ -233,7 +233,7 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
         super.onChange(selfChange);
         Log.w("ConversationListActivity", "detected android contact data changed, refreshing cache");
         // TODO only clear updated recipients from cache
-        RecipientFactory.clearCache();
+        RecipientFactory.invalidateContacts(ConversationListActivity.this);
         ConversationListActivity.this.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -87,7 +87,7 @@ public class ExportFragment extends Fragment {
     builder.show();
   }
 
-  private class ExportPlaintextTask extends AsyncTask<Void, Void, Integer> {
+  private class ExportPlaintextTask extends AsyncTask<Void, Integer, Integer> {
     private ProgressDialog dialog;
 
     @Override
@@ -101,7 +101,13 @@ public class ExportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret);
+        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret, false,
+                                                    new PlaintextBackupExporter.ProgressListener() {
+          @Override
+          public void onProgress(int exported, int total) {
+            publishProgress(exported, total);
+          }
+        });
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w("ExportFragment", e);
@@ -112,6 +118,15 @@ public class ExportFragment extends Fragment {
       }
     }
 
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+      Context context = getActivity();
+
+      if (dialog != null && context != null) {
+        dialog.setMessage(context.getString(R.string.ExportFragment_exported_d_of_d_messages, progress[0], progress[1]));
+      }
+    }
+
     @Override
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
@@ -3,9 +3,12 @@ package org.thoughtcrime.securesms;
 import android.os.Bundle;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.ActionBarActivity;
+import android.util.Log;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import org.thoughtcrime.securesms.database.DatabaseChangeNotifier;
+import org.thoughtcrime.securesms.database.QueryProfiler;
 import org.whispersystems.libpastelog.SubmitLogFragment;
 
 /**
@@ -19,12 +22,18 @@ public class LogSubmitActivity extends BaseActionBarActivity implements SubmitLo
     super.onCreate(icicle);
     setContentView(R.layout.log_submit_activity);
     getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+    logDatabaseReport();
     SubmitLogFragment fragment = SubmitLogFragment.newInstance();
     FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
     transaction.replace(R.id.fragment_container, fragment);
     transaction.commit();
   }
 
+  private void logDatabaseReport() {
+    QueryProfiler.getInstance().logReport();
+    Log.w(TAG, DatabaseChangeNotifier.getInstance(this).getStats());
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
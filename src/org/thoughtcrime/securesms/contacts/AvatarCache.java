@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.contacts;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of contact and group avatars, decoded at the size they
+ * are displayed at. Every recipient photo goes through here, so the
+ * conversation list, conversation headers and notifications share entries.
+ */
+public class AvatarCache {
+  private static final String TAG = AvatarCache.class.getSimpleName();
+
+  private static final int MEMORY_FRACTION = 16;
+  private static final int STATS_INTERVAL  = 100;
+
+  private static final AvatarCache instance = new AvatarCache();
+
+  private final LruCache<String, Bitmap> memoryCache;
+  private final Set<String>              noPhoto = Collections.synchronizedSet(new HashSet<String>());
+  private final AtomicLong               decodes = new AtomicLong(0);
+  private final AtomicLong               hits    = new AtomicLong(0);
+  private final AtomicLong               misses  = new AtomicLong(0);
+
+  public static AvatarCache getInstance() {
+    return instance;
+  }
+
+  private AvatarCache() {
+    int maxBytes = (int)Math.min(Runtime.getRuntime().maxMemory() / MEMORY_FRACTION, Integer.MAX_VALUE);
+
+    this.memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+      }
+    };
+  }
+
+  /**
+   * @return the contact's photo, or null if the contact doesn't have one.
+   */
+  public Bitmap getContactPhoto(Context context, Uri contactUri) {
+    String key    = "contact:" + contactUri;
+    Bitmap bitmap = memoryCache.get(key);
+
+    if (bitmap != null || noPhoto.contains(key)) {
+      record(hits);
+      return bitmap;
+    }
+
+    record(misses);
+
+    InputStream in = Contacts.openContactPhotoInputStream(context.getContentResolver(), contactUri);
+
+    if (in == null) {
+      noPhoto.add(key);
+      return null;
+    }
+
+    try {
+      return decode(context, key, Util.readFully(in));
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the decoded group avatar, or null if it can't be decoded.
+   */
+  public Bitmap getGroupPhoto(Context context, String groupId, byte[] avatar) {
+    String key    = "group:" + groupId + ":" + avatar.length + ":" + Arrays.hashCode(avatar);
+    Bitmap bitmap = memoryCache.get(key);
+
+    if (bitmap != null || noPhoto.contains(key)) {
+      record(hits);
+      return bitmap;
+    }
+
+    record(misses);
+
+    return decode(context, key, avatar);
+  }
+
+  public void clear() {
+    memoryCache.evictAll();
+    noPhoto.clear();
+  }
+
+  public void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      Log.w(TAG, "Trim level " + level + ", evicting all avatars. " + getStats());
+      memoryCache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+               level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+               level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+    {
+      Log.w(TAG, "Trim level " + level + ", halving avatar cache. " + getStats());
+      memoryCache.trimToSize(memoryCache.size() / 2);
+    }
+  }
+
+  public String getStats() {
+    long hitCount  = hits.get();
+    long missCount = misses.get();
+    long total     = hitCount + missCount;
+
+    return "avatar cache: " + memoryCache.size() + "/" + memoryCache.maxSize() + " bytes, " +
+           "hits " + hitCount + ", misses " + missCount + ", decodes " + decodes.get() + ", " +
+           "evictions " + memoryCache.evictionCount() + ", " +
+           "hit rate " + (total == 0 ? 0 : (hitCount * 100 / total)) + "%";
+  }
+
+  private void record(AtomicLong counter) {
+    counter.incrementAndGet();
+
+    if ((hits.get() + misses.get()) % STATS_INTERVAL == 0) {
+      Log.w(TAG, getStats());
+    }
+  }
+
+  private Bitmap decode(Context context, String key, byte[] data) {
+    int                   size    = context.getResources().getDimensionPixelSize(R.dimen.contact_photo_decode_size);
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds    = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+    int sampleSize = 1;
+
+    while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size) {
+      sampleSize *= 2;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize       = sampleSize;
+
+    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+    decodes.incrementAndGet();
+
+    if (bitmap == null) {
+      Log.w(TAG, "Couldn't decode avatar for " + key);
+      noPhoto.add(key);
+      return null;
+    }
+
+    int shortSide = Math.min(bitmap.getWidth(), bitmap.getHeight());
+
+    if (shortSide > size) {
+      Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                                                bitmap.getWidth() * size / shortSide,
+                                                bitmap.getHeight() * size / shortSide,
+                                                true);
+      if (scaled != bitmap) bitmap.recycle();
+      bitmap = scaled;
+    }
+
+    memoryCache.put(key, bitmap);
+    return bitmap;
+  }
+}
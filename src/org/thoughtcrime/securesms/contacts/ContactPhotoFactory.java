@@ -13,7 +13,6 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
 
-import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -76,6 +75,7 @@ public class ContactPhotoFactory {
 
   public static void clearCache() {
     localUserContactPhotoCache.clear();
+    AvatarCache.getInstance().clear();
   }
 
   public static void clearCache(Recipient recipient) {
@@ -84,12 +84,16 @@ public class ContactPhotoFactory {
   }
 
   public static Bitmap getContactPhoto(Context context, Uri uri) {
-    InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(context.getContentResolver(), uri);
+    Bitmap contactPhoto = AvatarCache.getInstance().getContactPhoto(context, uri);
 
-    final Bitmap contactPhoto;
-    if (inputStream == null) contactPhoto = ContactPhotoFactory.getDefaultContactPhoto(context);
-    else                     contactPhoto = BitmapFactory.decodeStream(inputStream);
+    if (contactPhoto == null) return getDefaultContactPhoto(context);
+    else                      return contactPhoto;
+  }
 
-    return contactPhoto;
+  public static Bitmap getGroupPhoto(Context context, String groupId, byte[] avatar) {
+    Bitmap groupPhoto = avatar == null ? null : AvatarCache.getInstance().getGroupPhoto(context, groupId, avatar);
+
+    if (groupPhoto == null) return getDefaultGroupPhoto(context);
+    else                    return groupPhoto;
   }
 }
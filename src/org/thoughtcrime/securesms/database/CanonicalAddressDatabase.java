@@ -63,17 +63,24 @@ public class CanonicalAddressDatabase {
   }
 
   private CanonicalAddressDatabase(Context context) {
-    databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    databaseHelper = new DatabaseHelper(context, DATABASE_NAME, QueryProfiler.getInstance(), DATABASE_VERSION);
     fillCache();
   }
 
   public void reset(Context context) {
     DatabaseHelper old  = this.databaseHelper;
-    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, QueryProfiler.getInstance(), DATABASE_VERSION);
     old.close();
+
+    addressCache.clear();
+    idCache.clear();
     fillCache();
   }
 
+  public void checkpoint() {
+    JournalMode.checkpoint(databaseHelper.getWritableDatabase());
+  }
+
   private void fillCache() {
     Cursor cursor = null;
 
@@ -214,6 +221,7 @@ public class CanonicalAddressDatabase {
 
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
       super(context, name, factory, version);
+      JournalMode.configure(context, this);
     }
 
     @Override
@@ -221,6 +229,11 @@ public class CanonicalAddressDatabase {
       db.execSQL(DATABASE_CREATE);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      JournalMode.onOpen(db);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
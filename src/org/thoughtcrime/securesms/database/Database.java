@@ -21,20 +21,23 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 
+import java.util.List;
 import java.util.Set;
 
 public abstract class Database {
 
-  protected static final String ID_WHERE            = "_id = ?";
-  private static final String CONVERSATION_URI      = "content://textsecure/thread/";
-  private static final String CONVERSATION_LIST_URI = "content://textsecure/conversation-list";
+  protected static final String ID_WHERE              = "_id = ?";
+            static final String CONVERSATION_URI      = "content://textsecure/thread/";
+            static final String CONVERSATION_LIST_URI = "content://textsecure/conversation-list";
 
-  protected       SQLiteOpenHelper databaseHelper;
-  protected final Context context;
+  protected       SQLiteOpenHelper       databaseHelper;
+  protected final Context                context;
+  protected final DatabaseChangeNotifier changeNotifier;
 
   public Database(Context context, SQLiteOpenHelper databaseHelper) {
     this.context        = context;
     this.databaseHelper = databaseHelper;
+    this.changeNotifier = DatabaseChangeNotifier.getInstance(context);
   }
 
   protected void notifyConversationListeners(Set<Long> threadIds) {
@@ -43,11 +46,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_URI + threadId), null);
+    changeNotifier.notifyConversation(threadId);
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_LIST_URI), null);
+    changeNotifier.notifyConversationList();
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
@@ -58,6 +61,27 @@ public abstract class Database {
     cursor.setNotificationUri(context.getContentResolver(), Uri.parse(CONVERSATION_LIST_URI));
   }
 
+  protected static String getPlaceholders(int count) {
+    StringBuilder placeholders = new StringBuilder();
+
+    for (int i=0;i<count;i++) {
+      if (i > 0) placeholders.append(',');
+      placeholders.append('?');
+    }
+
+    return placeholders.toString();
+  }
+
+  protected static String[] getIdArgs(List<Long> ids) {
+    String[] args = new String[ids.size()];
+
+    for (int i=0;i<args.length;i++) {
+      args[i] = String.valueOf(ids.get(i));
+    }
+
+    return args;
+  }
+
   public void reset(SQLiteOpenHelper databaseHelper) {
     this.databaseHelper = databaseHelper;
   }
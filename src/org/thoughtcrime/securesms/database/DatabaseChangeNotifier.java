@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces conversation and conversation list change notifications. Changes
+ * made inside a transaction started with this as its listener are held until
+ * the transaction ends, and everything requested within a short window is
+ * dispatched once per URI.
+ */
+public class DatabaseChangeNotifier implements SQLiteTransactionListener {
+
+  private static final String TAG = DatabaseChangeNotifier.class.getSimpleName();
+
+  private static final long DISPATCH_DELAY_MILLIS = 100;
+  private static final int  STATS_INTERVAL        = 100;
+
+  private static DatabaseChangeNotifier instance;
+
+  private final Context    context;
+  private final Handler    handler;
+  private final Set<Long>  pendingThreads = new HashSet<>();
+  private final AtomicLong requested      = new AtomicLong(0);
+  private final AtomicLong emitted        = new AtomicLong(0);
+
+  private final ThreadLocal<Batch> transactionBatch = new ThreadLocal<Batch>() {
+    @Override
+    protected Batch initialValue() {
+      return new Batch();
+    }
+  };
+
+  private boolean pendingConversationList = false;
+  private boolean dispatchScheduled       = false;
+
+  public static synchronized DatabaseChangeNotifier getInstance(Context context) {
+    if (instance == null) {
+      instance = new DatabaseChangeNotifier(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private DatabaseChangeNotifier(Context context) {
+    HandlerThread handlerThread = new HandlerThread(TAG);
+    handlerThread.start();
+
+    this.context = context;
+    this.handler = new Handler(handlerThread.getLooper());
+  }
+
+  public void notifyConversation(long threadId) {
+    requested.incrementAndGet();
+
+    Batch batch = transactionBatch.get();
+
+    if (batch.depth > 0) batch.threadIds.add(threadId);
+    else                 enqueue(Collections.singleton(threadId), false);
+  }
+
+  public void notifyConversationList() {
+    requested.incrementAndGet();
+
+    Batch batch = transactionBatch.get();
+
+    if (batch.depth > 0) batch.conversationList = true;
+    else                 enqueue(Collections.<Long>emptySet(), true);
+  }
+
+  @Override
+  public void onBegin() {
+    transactionBatch.get().depth++;
+  }
+
+  @Override
+  public void onCommit() {
+    endTransaction();
+  }
+
+  @Override
+  public void onRollback() {
+    endTransaction();
+  }
+
+  public String getStats() {
+    long total = requested.get();
+    long sent  = emitted.get();
+
+    return "change notifications: requested " + total + ", emitted " + sent + ", suppressed " + (total - sent);
+  }
+
+  private void endTransaction() {
+    Batch batch = transactionBatch.get();
+
+    if (--batch.depth > 0) return;
+
+    batch.depth = 0;
+    enqueue(batch.threadIds, batch.conversationList);
+
+    batch.threadIds.clear();
+    batch.conversationList = false;
+  }
+
+  private void enqueue(Set<Long> threadIds, boolean conversationList) {
+    if (threadIds.isEmpty() && !conversationList) return;
+
+    synchronized (this) {
+      pendingThreads.addAll(threadIds);
+      pendingConversationList |= conversationList;
+
+      if (!dispatchScheduled) {
+        dispatchScheduled = true;
+        handler.postDelayed(new Runnable() {
+          @Override
+          public void run() {
+            dispatch();
+          }
+        }, DISPATCH_DELAY_MILLIS);
+      }
+    }
+  }
+
+  private void dispatch() {
+    Set<Long> threadIds;
+    boolean   conversationList;
+
+    synchronized (this) {
+      threadIds               = new HashSet<>(pendingThreads);
+      conversationList        = pendingConversationList;
+      pendingConversationList = false;
+      dispatchScheduled       = false;
+      pendingThreads.clear();
+    }
+
+    for (long threadId : threadIds) {
+      emit(Uri.parse(Database.CONVERSATION_URI + threadId));
+    }
+
+    if (conversationList) {
+      emit(Uri.parse(Database.CONVERSATION_LIST_URI));
+    }
+  }
+
+  private void emit(Uri uri) {
+    context.getContentResolver().notifyChange(uri, null);
+
+    if (emitted.incrementAndGet() % STATS_INTERVAL == 0) {
+      Log.w(TAG, getStats());
+    }
+  }
+
+  private static class Batch {
+    private final Set<Long> threadIds = new HashSet<>();
+    private int             depth;
+    private boolean         conversationList;
+  }
+}
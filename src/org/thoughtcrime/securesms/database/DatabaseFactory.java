@@ -33,13 +33,17 @@ import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.libaxolotl.InvalidMessageException;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
 
 import ws.com.google.android.mms.ContentType;
 
@@ -59,7 +63,17 @@ public class DatabaseFactory {
   private static final int INTRODUCED_DELIVERY_RECEIPTS      = 13;
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION = 14;
   private static final int INTRODUCED_THUMBNAILS_VERSION     = 15;
-  private static final int DATABASE_VERSION                  = 15;
+  private static final int INTRODUCED_PART_HASH_VERSION      = 16;
+  private static final int INTRODUCED_RECIPIENT_DETAILS      = 17;
+  private static final int INTRODUCED_GROUP_MEMBERS_VERSION  = 18;
+  private static final int INTRODUCED_THREAD_RECIPIENTS      = 19;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION   = 20;
+  private static final int INTRODUCED_RECEIPT_ADDRESSES      = 21;
+  private static final int INTRODUCED_THREAD_DATE_INDEXES    = 22;
+  private static final int INTRODUCED_THREAD_TOMBSTONES      = 23;
+  private static final int INTRODUCED_PART_MEDIA_INDEX       = 24;
+  private static final int INTRODUCED_SEARCH_NATIONAL_NUMBER = 25;
+  private static final int DATABASE_VERSION                  = 25;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -80,6 +94,8 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final RecipientDetailsDatabase recipientDetailsDatabase;
+  private final SearchDatabase searchDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -138,8 +154,16 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static RecipientDetailsDatabase getRecipientDetailsDatabase(Context context) {
+    return getInstance(context).recipientDetailsDatabase;
+  }
+
+  public static SearchDatabase getSearchDatabase(Context context) {
+    return getInstance(context).searchDatabase;
+  }
+
   private DatabaseFactory(Context context) {
-    this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, QueryProfiler.getInstance(), DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
     this.encryptingSms    = new EncryptingSmsDatabase(context, databaseHelper);
     this.mms              = new MmsDatabase(context, databaseHelper);
@@ -152,11 +176,27 @@ public class DatabaseFactory {
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.pushDatabase     = new PushDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.recipientDetailsDatabase = new RecipientDetailsDatabase(context, databaseHelper);
+    this.searchDatabase   = new SearchDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
+    setDatabase(context, DATABASE_NAME);
+    this.address.reset(context);
+    TextSecureDirectory.getInstance(context).reset(context);
+  }
+
+  public void checkpoint() {
+    JournalMode.checkpoint(databaseHelper.getWritableDatabase());
+  }
+
+  /**
+   * Points every message table at the named database file, so that tests can
+   * write to a throwaway copy. The canonical address database isn't swapped.
+   */
+  @VisibleForTesting void setDatabase(Context context, String databaseName) {
     DatabaseHelper old = this.databaseHelper;
-    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.databaseHelper = new DatabaseHelper(context, databaseName, QueryProfiler.getInstance(), DATABASE_VERSION);
 
     this.sms.reset(databaseHelper);
     this.encryptingSms.reset(databaseHelper);
@@ -169,9 +209,9 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.recipientDetailsDatabase.reset(databaseHelper);
+    this.searchDatabase.reset(databaseHelper);
     old.close();
-
-    this.address.reset(context);
   }
 
   public void onApplicationLevelUpgrade(Context context, MasterSecret masterSecret, int fromVersion,
@@ -463,8 +503,17 @@ public class DatabaseFactory {
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
+    private final Context context;
+
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
       super(context, name, factory, version);
+      this.context = context.getApplicationContext();
+      JournalMode.configure(context, this);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      JournalMode.onOpen(db);
     }
 
     @Override
@@ -473,11 +522,15 @@ public class DatabaseFactory {
       db.execSQL(MmsDatabase.CREATE_TABLE);
       db.execSQL(PartDatabase.CREATE_TABLE);
       db.execSQL(ThreadDatabase.CREATE_TABLE);
+      db.execSQL(ThreadDatabase.CREATE_RECIPIENTS_TABLE);
       db.execSQL(MmsAddressDatabase.CREATE_TABLE);
       db.execSQL(IdentityDatabase.CREATE_TABLE);
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(GroupDatabase.CREATE_MEMBERS_TABLE);
+      db.execSQL(RecipientDetailsDatabase.CREATE_TABLE);
+      db.execSQL(SearchDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -710,6 +763,138 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE part ADD COLUMN aspect_ratio REAL");
       }
 
+      if (oldVersion < INTRODUCED_PART_HASH_VERSION) {
+        db.execSQL("ALTER TABLE part ADD COLUMN data_hash TEXT");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON part (data_hash);");
+      }
+
+      if (oldVersion < INTRODUCED_RECIPIENT_DETAILS) {
+        db.execSQL("CREATE TABLE recipient_details (_id INTEGER PRIMARY KEY, address TEXT UNIQUE, name TEXT, number TEXT, lookup_uri TEXT, contact_uri TEXT, photo_id INTEGER DEFAULT 0, timestamp INTEGER);");
+      }
+
+      if (oldVersion < INTRODUCED_GROUP_MEMBERS_VERSION) {
+        db.execSQL("CREATE TABLE group_members (_id INTEGER PRIMARY KEY, group_id TEXT, address TEXT, recipient_id INTEGER);");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS group_members_group_address_index ON group_members (group_id, address);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS group_members_recipient_index ON group_members (recipient_id);");
+
+        CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
+        Cursor                   cursor          = db.query("groups", new String[] {"group_id", "members"},
+                                                            null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          for (String member : Util.split(cursor.getString(1), ",")) {
+            ContentValues values = new ContentValues(3);
+            values.put("group_id", cursor.getString(0));
+            values.put("address", member);
+            values.put("recipient_id", addressDatabase.getCanonicalAddressId(member));
+
+            db.insertWithOnConflict("group_members", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+          }
+        }
+
+        if (cursor != null)
+          cursor.close();
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_RECIPIENTS) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN recipient_hash INTEGER DEFAULT 0;");
+        db.execSQL("CREATE TABLE thread_recipients (_id INTEGER PRIMARY KEY, thread_id INTEGER, recipient_id INTEGER);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_recipient_hash_index ON thread (recipient_hash);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_recipients_thread_index ON thread_recipients (thread_id);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_recipients_recipient_index ON thread_recipients (recipient_id, thread_id);");
+
+        Cursor cursor = db.query("thread", new String[] {"_id", "recipient_ids"}, null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          long       threadId     = cursor.getLong(0);
+          List<Long> recipientIds = new LinkedList<>();
+          boolean    parsed       = true;
+
+          for (String recipient : Util.split(cursor.getString(1), " ")) {
+            try {
+              recipientIds.add(Long.parseLong(recipient));
+            } catch (NumberFormatException e) {
+              Log.w("DatabaseFactory", "Unparseable recipient in thread " + threadId + ": " + recipient);
+              parsed = false;
+            }
+          }
+
+          // Threads left with a zero hash are still found by their recipient_ids string.
+          if (parsed) {
+            long[] ids = new long[recipientIds.size()];
+            for (int i=0;i<ids.length;i++) ids[i] = recipientIds.get(i);
+
+            ContentValues hashValues = new ContentValues(1);
+            hashValues.put("recipient_hash", ThreadDatabase.getRecipientHash(ids));
+            db.update("thread", hashValues, "_id = ?", new String[] {String.valueOf(threadId)});
+          }
+
+          for (long recipientId : recipientIds) {
+            ContentValues values = new ContentValues(2);
+            values.put("thread_id", threadId);
+            values.put("recipient_id", recipientId);
+            db.insert("thread_recipients", null, values);
+          }
+        }
+
+        if (cursor != null)
+          cursor.close();
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE VIRTUAL TABLE recipient_search USING fts3(name, number);");
+      }
+
+      if (oldVersion < INTRODUCED_RECEIPT_ADDRESSES) {
+        db.execSQL("ALTER TABLE sms ADD COLUMN canonical_address TEXT;");
+        db.execSQL("ALTER TABLE mms_addresses ADD COLUMN canonical_address TEXT;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_date_sent_canonical_address_index ON sms (date_sent, canonical_address);");
+
+        for (String table : new String[] {"sms", "mms_addresses"}) {
+          Cursor cursor = db.query(true, table, new String[] {"address"}, null, null, null, null, null, null);
+
+          while (cursor != null && cursor.moveToNext()) {
+            String address = cursor.getString(0);
+            if (address == null) continue;
+
+            try {
+              ContentValues values = new ContentValues(1);
+              values.put("canonical_address", Util.canonicalizeNumberOrGroup(context, address));
+              db.update(table, values, "address = ?", new String[] {address});
+            } catch (InvalidNumberException e) {
+              Log.w("DatabaseFactory", e);
+            }
+          }
+
+          if (cursor != null)
+            cursor.close();
+        }
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_DATE_INDEXES) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_date_index ON sms (thread_id, date);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_date_index ON mms (thread_id, date_received);");
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_TOMBSTONES) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN deleted INTEGER DEFAULT 0;");
+      }
+
+      if (oldVersion < INTRODUCED_PART_MEDIA_INDEX) {
+        db.execSQL("ALTER TABLE part ADD COLUMN thread_id INTEGER;");
+        db.execSQL("ALTER TABLE part ADD COLUMN media_class INTEGER DEFAULT 0;");
+        db.execSQL("UPDATE part SET thread_id = (SELECT mms.thread_id FROM mms WHERE mms._id = part.mid), " +
+                   "media_class = CASE WHEN ct LIKE 'image/%' THEN 1 WHEN ct LIKE 'video/%' THEN 2 " +
+                   "WHEN ct LIKE 'audio/%' THEN 3 ELSE 0 END;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_thread_media_index ON part (thread_id, media_class);");
+        db.execSQL("DROP INDEX IF EXISTS pending_push_index;");
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_NATIONAL_NUMBER) {
+        // Recipients missing from the index are re-added on the next cache warm.
+        db.execSQL("DELETE FROM recipient_search;");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
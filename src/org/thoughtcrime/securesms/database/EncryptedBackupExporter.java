@@ -28,8 +28,18 @@ import java.nio.channels.FileChannel;
 
 public class EncryptedBackupExporter {
 
+  private static final String WAL_SUFFIX           = "-wal";
+  private static final String SHARED_MEMORY_SUFFIX = "-shm";
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
+
+    // Bring each database file up to date, so the copies don't depend on
+    // write-ahead logs that can be checkpointed while they're being taken.
+    DatabaseFactory.getInstance(context).checkpoint();
+    CanonicalAddressDatabase.getInstance(context).checkpoint();
+    TextSecureDirectory.getInstance(context).checkpoint();
+
     exportDirectory(context, "");
   }
 
@@ -63,12 +73,20 @@ public class EncryptedBackupExporter {
   private static void migrateFile(File from, File to) {
     try {
       if (from.exists()) {
+        File        temporary   = new File(to.getPath() + ".tmp");
         FileChannel source      = new FileInputStream(from).getChannel();
-        FileChannel destination = new FileOutputStream(to).getChannel();
+        FileChannel destination = new FileOutputStream(temporary).getChannel();
 
         destination.transferFrom(source, 0, source.size());
         source.close();
         destination.close();
+
+        // Replace rather than overwrite, so a connection still open on the old
+        // database can't checkpoint its write-ahead log into the new one.
+        if (!temporary.renameTo(to)) {
+          Log.w("EncryptedBackupExporter", "Couldn't replace " + to.getAbsolutePath());
+          temporary.delete();
+        }
       }
     } catch (IOException ioe) {
       Log.w("EncryptedBackupExporter", ioe);
@@ -87,7 +105,9 @@ public class EncryptedBackupExporter {
       for (int i=0;i<contents.length;i++) {
         File localFile = contents[i];
 
-        if (localFile.isFile()) {
+        if (localFile.isFile() && localFile.getName().endsWith(SHARED_MEMORY_SUFFIX)) {
+          continue;
+        } else if (localFile.isFile()) {
           File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
           migrateFile(localFile, exportedFile);
         } else {
@@ -109,9 +129,16 @@ public class EncryptedBackupExporter {
       File[] contents = directory.listFiles();
 
       for (File exportedFile : contents) {
-        if (exportedFile.isFile()) {
+        if (exportedFile.isFile() && exportedFile.getName().endsWith(SHARED_MEMORY_SUFFIX)) {
+          continue;
+        } else if (exportedFile.isFile()) {
           File localFile = new File(importDirectory.getAbsolutePath() + File.separator + exportedFile.getName());
           migrateFile(exportedFile, localFile);
+
+          if (!exportedFile.getName().endsWith(WAL_SUFFIX) && !new File(exportedFile.getPath() + WAL_SUFFIX).exists()) {
+            new File(localFile.getPath() + WAL_SUFFIX).delete();
+            new File(localFile.getPath() + SHARED_MEMORY_SUFFIX).delete();
+          }
         } else if (exportedFile.isDirectory()) {
           importDirectory(context, directoryName + File.separator + exportedFile.getName());
         }
@@ -112,8 +112,8 @@ public class EncryptingSmsDatabase extends SmsDatabase {
                              Types.ENCRYPTION_SYMMETRIC_BIT);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  public Reader getMessagesBetween(MasterSecret masterSecret, long firstId, long lastId) {
+    Cursor cursor = super.getMessagesBetween(firstId, lastId);
     return new DecryptingReader(masterSecret, cursor);
   }
 
@@ -8,14 +8,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
-import android.util.Log;
 
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
@@ -23,8 +22,14 @@ import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class GroupDatabase extends Database {
 
@@ -45,6 +50,13 @@ public class GroupDatabase extends Database {
   private static final String TIMESTAMP           = "timestamp";
   private static final String ACTIVE              = "active";
 
+  private static final String MEMBERS_TABLE_NAME  = "group_members";
+  private static final String MEMBER_GROUP_ID     = "group_id";
+  private static final String MEMBER_ADDRESS      = "address";
+  private static final String MEMBER_RECIPIENT_ID = "recipient_id";
+
+  private static final int MEMBERSHIP_CACHE_SIZE = 100;
+
   public static final String CREATE_TABLE =
       "CREATE TABLE " + TABLE_NAME +
           " (" + ID + " INTEGER PRIMARY KEY, " +
@@ -59,16 +71,42 @@ public class GroupDatabase extends Database {
           TIMESTAMP + " INTEGER, " +
           ACTIVE + " INTEGER DEFAULT 1);";
 
+  public static final String CREATE_MEMBERS_TABLE =
+      "CREATE TABLE " + MEMBERS_TABLE_NAME +
+          " (" + ID + " INTEGER PRIMARY KEY, " +
+          MEMBER_GROUP_ID + " TEXT, " +
+          MEMBER_ADDRESS + " TEXT, " +
+          MEMBER_RECIPIENT_ID + " INTEGER);";
+
   public static final String[] CREATE_INDEXS = {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_id_index ON " + TABLE_NAME + " (" + GROUP_ID + ");",
+      "CREATE UNIQUE INDEX IF NOT EXISTS group_members_group_address_index ON " + MEMBERS_TABLE_NAME + " (" + MEMBER_GROUP_ID + ", " + MEMBER_ADDRESS + ");",
+      "CREATE INDEX IF NOT EXISTS group_members_recipient_index ON " + MEMBERS_TABLE_NAME + " (" + MEMBER_RECIPIENT_ID + ");",
   };
 
+  private static final String[] GROUP_PROJECTION = {
+      GROUP_ID, TITLE, AVATAR, AVATAR_ID, AVATAR_KEY, AVATAR_CONTENT_TYPE, AVATAR_RELAY, ACTIVE,
+      "(SELECT group_concat(" + MEMBER_ADDRESS + ", ',') FROM " + MEMBERS_TABLE_NAME +
+          " WHERE " + MEMBERS_TABLE_NAME + "." + MEMBER_GROUP_ID + " = " + TABLE_NAME + "." + GROUP_ID + ") AS " + MEMBERS
+  };
+
+  private final Map<String, List<Member>> membershipCache = new LRUCache<>(MEMBERSHIP_CACHE_SIZE);
+
   public GroupDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
+  @Override
+  public void reset(SQLiteOpenHelper databaseHelper) {
+    super.reset(databaseHelper);
+
+    synchronized (membershipCache) {
+      membershipCache.clear();
+    }
+  }
+
   public GroupRecord getGroup(byte[] groupId) {
-    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, GROUP_ID + " = ?",
+    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, GROUP_PROJECTION, GROUP_ID + " = ?",
                                                                new String[] {GroupUtil.getEncodedId(groupId)},
                                                                null, null, null);
 
@@ -80,7 +118,7 @@ public class GroupDatabase extends Database {
   }
 
   public Reader getGroupsFilteredByTitle(String constraint) {
-    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, TITLE + " LIKE ?",
+    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, GROUP_PROJECTION, TITLE + " LIKE ?",
                                                                new String[]{"%" + constraint + "%"},
                                                                null, null, null);
 
@@ -89,31 +127,42 @@ public class GroupDatabase extends Database {
 
   public Recipients getGroupMembers(byte[] groupId, boolean includeSelf) {
     String          localNumber = TextSecurePreferences.getLocalNumber(context);
-    List<String>    members     = getCurrentMembers(groupId);
+    List<Member>    members     = getCurrentMembers(GroupUtil.getEncodedId(groupId));
     List<Recipient> recipients  = new LinkedList<Recipient>();
 
-    for (String member : members) {
-      if (!includeSelf && member.equals(localNumber))
+    for (Member member : members) {
+      if (!includeSelf && member.address.equals(localNumber))
         continue;
 
-      try {
-        recipients.addAll(RecipientFactory.getRecipientsFromString(context, member, false)
-                                          .getRecipientsList());
-      } catch (RecipientFormattingException e) {
-        Log.w("GroupDatabase", e);
-      }
+      recipients.add(RecipientFactory.getRecipientForId(context, member.recipientId, false));
     }
 
     return new Recipients(recipients);
   }
 
+  public boolean isMember(byte[] groupId, String address) {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME, new String[] {ID},
+                                                          MEMBER_GROUP_ID + " = ? AND " + MEMBER_ADDRESS + " = ?",
+                                                          new String[] {GroupUtil.getEncodedId(groupId), address},
+                                                          null, null, null, "1");
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void create(byte[] groupId, String title, List<String> members,
                      TextSecureAttachmentPointer avatar, String relay)
   {
+    String        encodedId     = GroupUtil.getEncodedId(groupId);
     ContentValues contentValues = new ContentValues();
-    contentValues.put(GROUP_ID, GroupUtil.getEncodedId(groupId));
+    contentValues.put(GROUP_ID, encodedId);
     contentValues.put(TITLE, title);
-    contentValues.put(MEMBERS, Util.join(members, ","));
 
     if (avatar != null) {
       contentValues.put(AVATAR_ID, avatar.getId());
@@ -125,7 +174,22 @@ public class GroupDatabase extends Database {
     contentValues.put(TIMESTAMP, System.currentTimeMillis());
     contentValues.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    synchronized (membershipCache) {
+      database.beginTransaction();
+
+      try {
+        database.insert(TABLE_NAME, null, contentValues);
+        if (members != null) insertMembers(database, encodedId, members);
+        updateSearchIndex(database, encodedId, title);
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
+      membershipCache.remove(encodedId);
+    }
   }
 
   public void update(byte[] groupId, String title, TextSecureAttachmentPointer avatar) {
@@ -142,6 +206,10 @@ public class GroupDatabase extends Database {
                                                 GROUP_ID + " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
+    if (title != null) {
+      updateSearchIndex(databaseHelper.getWritableDatabase(), GroupUtil.getEncodedId(groupId), title);
+    }
+
     RecipientFactory.clearCache();
     notifyDatabaseListeners();
   }
@@ -152,6 +220,8 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
+    updateSearchIndex(databaseHelper.getWritableDatabase(), GroupUtil.getEncodedId(groupId), title);
+
     RecipientFactory.clearCache();
     notifyDatabaseListeners();
   }
@@ -172,42 +242,90 @@ public class GroupDatabase extends Database {
   }
 
   public void updateMembers(byte[] id, List<String> members) {
+    String         groupId  = GroupUtil.getEncodedId(id);
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    Set<String>    updated  = new HashSet<>(members);
+
     ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(members, ","));
     contents.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+    synchronized (membershipCache) {
+      database.beginTransaction();
+
+      try {
+        for (Member member : getCurrentMembers(groupId)) {
+          if (!updated.contains(member.address)) {
+            database.delete(MEMBERS_TABLE_NAME, MEMBER_GROUP_ID + " = ? AND " + MEMBER_ADDRESS + " = ?",
+                            new String[] {groupId, member.address});
+          }
+        }
+
+        insertMembers(database, groupId, updated);
+        database.update(TABLE_NAME, contents, GROUP_ID + " = ?", new String[] {groupId});
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
+      membershipCache.remove(groupId);
+    }
   }
 
   public void remove(byte[] id, String source) {
-    List<String> currentMembers = getCurrentMembers(id);
-    currentMembers.remove(source);
+    String groupId = GroupUtil.getEncodedId(id);
 
-    ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, Util.join(currentMembers, ","));
+    synchronized (membershipCache) {
+      databaseHelper.getWritableDatabase().delete(MEMBERS_TABLE_NAME,
+                                                  MEMBER_GROUP_ID + " = ? AND " + MEMBER_ADDRESS + " = ?",
+                                                  new String[] {groupId, source});
+      membershipCache.remove(groupId);
+    }
+  }
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {GroupUtil.getEncodedId(id)});
+  private void updateSearchIndex(SQLiteDatabase database, String groupId, String title) {
+    long recipientId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddressId(groupId);
+    DatabaseFactory.getSearchDatabase(context).setRecipient(database, recipientId, title, null);
   }
 
-  private List<String> getCurrentMembers(byte[] id) {
-    Cursor cursor = null;
+  private void insertMembers(SQLiteDatabase database, String groupId, Collection<String> members) {
+    CanonicalAddressDatabase addressDatabase = CanonicalAddressDatabase.getInstance(context);
 
-    try {
-      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {MEMBERS},
-                                                          GROUP_ID + " = ?",
-                                                          new String[] {GroupUtil.getEncodedId(id)},
-                                                          null, null, null);
+    for (String member : members) {
+      ContentValues values = new ContentValues(3);
+      values.put(MEMBER_GROUP_ID, groupId);
+      values.put(MEMBER_ADDRESS, member);
+      values.put(MEMBER_RECIPIENT_ID, addressDatabase.getCanonicalAddressId(member));
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return Util.split(cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS)), ",");
+      database.insertWithOnConflict(MEMBERS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+  }
+
+  private List<Member> getCurrentMembers(String groupId) {
+    synchronized (membershipCache) {
+      List<Member> members = membershipCache.get(groupId);
+      if (members != null) return members;
+
+      members = new ArrayList<>();
+      Cursor cursor = null;
+
+      try {
+        cursor = databaseHelper.getReadableDatabase().query(MEMBERS_TABLE_NAME,
+                                                            new String[] {MEMBER_ADDRESS, MEMBER_RECIPIENT_ID},
+                                                            MEMBER_GROUP_ID + " = ?", new String[] {groupId},
+                                                            null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          members.add(new Member(cursor.getString(0), cursor.getLong(1)));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
 
-      return new LinkedList<>();
-    } finally {
-      if (cursor != null)
-        cursor.close();
+      members = Collections.unmodifiableList(members);
+      membershipCache.put(groupId, members);
+
+      return members;
     }
   }
 
@@ -239,6 +357,16 @@ public class GroupDatabase extends Database {
     context.sendBroadcast(intent);
   }
 
+  private static class Member {
+    private final String address;
+    private final long   recipientId;
+
+    private Member(String address, long recipientId) {
+      this.address     = address;
+      this.recipientId = recipientId;
+    }
+  }
+
   public static class Reader {
 
     private final Cursor cursor;
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+/**
+ * Puts a database in write-ahead log mode, where reads are served from the
+ * helper's pool of secondary connections instead of waiting behind a long
+ * write. The preference is read when a helper is created, and turning it off
+ * returns the database to a rollback journal the next time it's opened.
+ */
+public class JournalMode {
+
+  private static final String TAG = JournalMode.class.getSimpleName();
+
+  /**
+   * Android checkpoints every 100 pages by default, which stalls bursts of
+   * inserts. Checkpoint less often and truncate the log back down afterwards.
+   */
+  private static final int WAL_AUTO_CHECKPOINT_PAGES = 1000;
+  private static final int JOURNAL_SIZE_LIMIT_BYTES  = 4 * 1024 * 1024;
+
+  public static void configure(Context context, SQLiteOpenHelper helper) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      setWriteAheadLoggingEnabled(helper, TextSecurePreferences.isDatabaseWalEnabled(context));
+    }
+  }
+
+  public static void onOpen(SQLiteDatabase db) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || db.isReadOnly() || !isWriteAheadLoggingEnabled(db)) {
+      return;
+    }
+
+    // Inside a transaction so the pragmas land on the primary connection, which does the writing.
+    db.beginTransaction();
+
+    try {
+      pragma(db, "wal_autocheckpoint = " + WAL_AUTO_CHECKPOINT_PAGES);
+      pragma(db, "journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    Log.w(TAG, "Write-ahead logging enabled for " + db.getPath());
+  }
+
+  /**
+   * Copies everything in the write-ahead log into the database file, so the
+   * file can be copied on its own. Does nothing with a rollback journal.
+   */
+  public static void checkpoint(SQLiteDatabase db) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !isWriteAheadLoggingEnabled(db)) {
+      return;
+    }
+
+    Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+
+    try {
+      if (cursor.moveToFirst() && cursor.getInt(0) != 0) {
+        Log.w(TAG, "Checkpoint of " + db.getPath() + " was blocked, " +
+                   cursor.getInt(2) + " of " + cursor.getInt(1) + " pages copied");
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static void setWriteAheadLoggingEnabled(SQLiteOpenHelper helper, boolean enabled) {
+    helper.setWriteAheadLoggingEnabled(enabled);
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static boolean isWriteAheadLoggingEnabled(SQLiteDatabase db) {
+    return db.isWriteAheadLoggingEnabled();
+  }
+
+  private static void pragma(SQLiteDatabase db, String pragma) {
+    Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+
+    try {
+      cursor.moveToFirst();
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -23,6 +23,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+
 import ws.com.google.android.mms.pdu.CharacterSets;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduHeaders;
@@ -33,16 +36,17 @@ import java.util.List;
 
 public class MmsAddressDatabase extends Database {
 
-  private static final String TABLE_NAME      = "mms_addresses";
-  private static final String ID              = "_id";
-  private static final String MMS_ID          = "mms_id";
-  private static final String TYPE            = "type";
-  private static final String ADDRESS         = "address";
-  private static final String ADDRESS_CHARSET = "address_charset";
+          static final String TABLE_NAME        = "mms_addresses";
+  private static final String ID                = "_id";
+          static final String MMS_ID            = "mms_id";
+  private static final String TYPE              = "type";
+  private static final String ADDRESS           = "address";
+  private static final String ADDRESS_CHARSET   = "address_charset";
+          static final String CANONICAL_ADDRESS = "canonical_address";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
     MMS_ID + " INTEGER, " +  TYPE + " INTEGER, " + ADDRESS + " TEXT, " +
-    ADDRESS_CHARSET + " INTEGER);";
+    ADDRESS_CHARSET + " INTEGER, " + CANONICAL_ADDRESS + " TEXT);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS mms_addresses_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
@@ -55,11 +59,13 @@ public class MmsAddressDatabase extends Database {
   private void insertAddress(long messageId, int type, EncodedStringValue address) {
     if (address != null) {
       SQLiteDatabase database = databaseHelper.getWritableDatabase();
+      String isoAddress       = toIsoString(address.getTextString());
       ContentValues contentValues = new ContentValues();
       contentValues.put(MMS_ID, messageId);
       contentValues.put(TYPE, type);
-      contentValues.put(ADDRESS, toIsoString(address.getTextString()));
+      contentValues.put(ADDRESS, isoAddress);
       contentValues.put(ADDRESS_CHARSET, address.getCharacterSet());
+      contentValues.put(CANONICAL_ADDRESS, getCanonicalAddress(isoAddress));
       database.insert(TABLE_NAME, null, contentValues);
     }
   }
@@ -132,11 +138,24 @@ public class MmsAddressDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {messageId+""});
   }
 
+  void deleteAddressesForIds(List<Long> messageIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, MMS_ID + " IN (" + getPlaceholders(messageIds.size()) + ")", getIdArgs(messageIds));
+  }
+
   public void deleteAllAddresses() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
   }
 
+  private String getCanonicalAddress(String address) {
+    try {
+      return Util.canonicalizeNumberOrGroup(context, address);
+    } catch (InvalidNumberException e) {
+      return null;
+    }
+  }
+
   private byte[] getBytes(String data) {
     try {
       return data.getBytes(CharacterSets.MIMENAME_ISO_8859_1);
@@ -34,6 +34,7 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.DeliveryReceipt;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -57,12 +58,15 @@ import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -80,9 +84,6 @@ import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendReq;
 
-import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
-import static org.thoughtcrime.securesms.util.Util.canonicalizeNumberOrGroup;
-
 // XXXX Clean up MMS efficiency:
 // 1) We need to be careful about how much memory we're using for parts. SoftRefereences.
 // 2) How many queries do we make?  calling getMediaMessageForId() from within an existing query
@@ -120,6 +121,8 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
   private static final String DELIVERY_REPORT    = "d_rpt";
           static final String PART_COUNT         = "part_count";
 
+  private static final int DELETE_BATCH_SIZE = 100;
+
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, "                          +
     THREAD_ID + " INTEGER, " + DATE_SENT + " INTEGER, " + DATE_RECEIVED + " INTEGER, " + MESSAGE_BOX + " INTEGER, " +
     READ + " INTEGER DEFAULT 0, " + MESSAGE_ID + " TEXT, " + SUBJECT + " TEXT, "                +
@@ -136,6 +139,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS mms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
@@ -153,6 +157,18 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       RECEIPT_COUNT
   };
 
+  private static final String UPDATE_MAILBOX_SQL         = "UPDATE " + TABLE_NAME + " SET " + MESSAGE_BOX + " = (" + MESSAGE_BOX + " & ? | ?) WHERE " + ID_WHERE;
+  private static final String UPDATE_STATUS_SQL          = "UPDATE " + TABLE_NAME + " SET " + STATUS + " = ? WHERE " + ID_WHERE;
+  private static final String UPDATE_RESPONSE_STATUS_SQL = "UPDATE " + TABLE_NAME + " SET " + RESPONSE_STATUS + " = ? WHERE " + ID_WHERE;
+  private static final String UPDATE_SENT_SQL            = "UPDATE " + TABLE_NAME + " SET " + RESPONSE_STATUS + " = ?, " + MESSAGE_ID + " = ? WHERE " + ID_WHERE;
+
+  private static final String TEXT_MESSAGE_WHERE = MESSAGE_TYPE + " != " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND +
+                                                   " AND " + BODY + " IS NOT NULL";
+
+  private static final String[] TEXT_PROJECTION = new String[] {
+      ID, THREAD_ID, ADDRESS, DATE_RECEIVED + " * 1000 AS " + NORMALIZED_DATE_RECEIVED, MESSAGE_BOX, BODY
+  };
+
   public static final ExecutorService slideResolver = org.thoughtcrime.securesms.util.Util.newSingleThreadedLifoExecutor();
   private static final Map<Long, SoftReference<SlideDeck>> slideCache =
       Collections.synchronizedMap(new LRUCache<Long, SoftReference<SlideDeck>>(20));
@@ -164,6 +180,58 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     this.jobManager = ApplicationContext.getInstance(context).getJobManager();
   }
 
+  /**
+   * @return the number of downloaded messages with a text body.
+   */
+  int getTextMessageCount() {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {"COUNT(*)"}, TEXT_MESSAGE_WHERE,
+                                                          null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return up to limit ids of messages with a text body greater than lastId, in order.
+   */
+  List<Long> getTextMessageIdsAfter(long lastId, int limit) {
+    List<Long> ids    = new ArrayList<>(limit);
+    Cursor     cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID},
+                                                          ID + " > ? AND " + TEXT_MESSAGE_WHERE,
+                                                          new String[] {String.valueOf(lastId)},
+                                                          null, null, ID, String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+
+      return ids;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return the messages with a text body in the id range, projected with
+   * {@link #TEXT_PROJECTION} and bodies still encrypted.
+   */
+  Cursor getTextMessagesBetween(long firstId, long lastId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, TEXT_PROJECTION, ID + " >= ? AND " + ID + " <= ? AND " + TEXT_MESSAGE_WHERE,
+                    new String[] {String.valueOf(firstId), String.valueOf(lastId)}, null, null, ID);
+  }
+
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -181,36 +249,44 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     return 0;
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
-    SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
-    Cursor             cursor          = null;
+  /**
+   * Increments the receipt count of every outgoing message sent to one of the
+   * receipts' canonical addresses, or to a group, at the receipt's timestamp.
+   */
+  void incrementDeliveryReceiptCounts(List<DeliveryReceipt> receipts, Set<Long> threadIds) {
+    SQLiteDatabase     database   = databaseHelper.getWritableDatabase();
+    Map<Long, Integer> increments = new HashMap<>();
+    Set<String>        matched    = new HashSet<>();
+    String[]           dates      = new String[receipts.size()];
+    Cursor             cursor     = null;
+
+    for (int i=0;i<dates.length;i++) {
+      dates[i] = String.valueOf(receipts.get(i).getTimestamp() / 1000);
+    }
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(timestamp / 1000)}, null, null, null, null);
-
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          List<String> addresses = addressDatabase.getAddressesForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+      cursor = database.rawQuery("SELECT " + TABLE_NAME + "." + ID + ", " + THREAD_ID + ", " + MESSAGE_BOX + ", " +
+                                 DATE_SENT + ", " + MmsAddressDatabase.CANONICAL_ADDRESS +
+                                 " FROM " + TABLE_NAME + " INNER JOIN " + MmsAddressDatabase.TABLE_NAME +
+                                 " ON " + MmsAddressDatabase.TABLE_NAME + "." + MmsAddressDatabase.MMS_ID +
+                                 " = " + TABLE_NAME + "." + ID +
+                                 " WHERE " + DATE_SENT + " IN (" + getPlaceholders(dates.length) + ")",
+                                 dates);
 
-          for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, address);
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
-
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+      while (cursor != null && cursor.moveToNext()) {
+        long   id      = cursor.getLong(0);
+        String address = cursor.getString(4);
 
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
+        if (address == null || !Types.isOutgoingMessageType(cursor.getLong(2))) continue;
 
-                notifyConversationListeners(threadId);
-              }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
-            }
+        for (int i=0;i<receipts.size();i++) {
+          if (receipts.get(i).getTimestamp() / 1000 == cursor.getLong(3)   &&
+              (address.equals(receipts.get(i).getAddress()) || GroupUtil.isEncodedGroup(address)) &&
+              matched.add(i + ":" + id))
+          {
+            Integer count = increments.get(id);
+            increments.put(id, count == null ? 1 : count + 1);
+            threadIds.add(cursor.getLong(1));
           }
         }
       }
@@ -218,6 +294,11 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       if (cursor != null)
         cursor.close();
     }
+
+    for (Map.Entry<Long, Integer> increment : increments.entrySet()) {
+      database.execSQL("UPDATE " + TABLE_NAME + " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                       new Object[] {increment.getValue(), increment.getKey()});
+    }
   }
 
   public long getThreadIdForMessage(long id) {
@@ -320,18 +401,11 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
   }
 
   public void updateResponseStatus(long messageId, int status) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(RESPONSE_STATUS, status);
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_RESPONSE_STATUS_SQL, new Object[] {status, messageId});
   }
 
   private void updateMailboxBitmask(long id, long maskOff, long maskOn) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.execSQL("UPDATE " + TABLE_NAME +
-               " SET " + MESSAGE_BOX + " = (" + MESSAGE_BOX + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
-               " WHERE " + ID + " = ?", new String[] {id + ""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_MAILBOX_SQL, new Object[] {Types.TOTAL_MASK - maskOff, maskOn, id});
   }
 
   public void markAsOutbox(long messageId) {
@@ -365,31 +439,18 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
   }
 
   public void markAsSent(long messageId, byte[] mmsId, long status) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(RESPONSE_STATUS, status);
-    contentValues.put(MESSAGE_ID, new String(mmsId));
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId+""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_SENT_SQL, new Object[] {status, new String(mmsId), messageId});
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_TYPE);
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
   public void markDownloadState(long messageId, long state) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, state);
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_STATUS_SQL, new Object[] {state, messageId});
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
   public void markDeliveryStatus(long messageId, int status) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, status);
-
-    database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {messageId + ""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_STATUS_SQL, new Object[] {status, messageId});
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
@@ -530,8 +591,14 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       contentValues.put(READ, 1);
       contentValues.put(DATE_RECEIVED, contentValues.getAsLong(DATE_SENT));
 
-      return insertMediaMessage(masterSecret, request.getPduHeaders(),
-                                request.getBody(), contentValues);
+      long threadId  = contentValues.getAsLong(THREAD_ID);
+      long messageId = insertMediaMessage(masterSecret, request.getPduHeaders(),
+                                          request.getBody(), contentValues);
+
+      // The copy keeps the original's dates, so it isn't necessarily the newest.
+      DatabaseFactory.getThreadDatabase(context).update(threadId);
+
+      return messageId;
     } catch (NoSuchMessageException e) {
       throw new MmsException(e);
     }
@@ -574,8 +641,6 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
-    notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return new Pair<>(messageId, threadId);
@@ -726,85 +791,136 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     contentValues.put(PART_COUNT, PartParser.getSupportedMediaPartCount(body));
 
-    long messageId = db.insert(TABLE_NAME, null, contentValues);
+    long threadId = contentValues.getAsLong(THREAD_ID);
+    long messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, contentValues);
+
+      String messageBody = contentValues.getAsString(BODY);
+
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageBody == null ? "" : messageBody,
+                                                                 contentValues.getAsLong(DATE_SENT) * 1000,
+                                                                 contentValues.getAsLong(DATE_RECEIVED) * 1000,
+                                                                 contentValues.getAsLong(MESSAGE_BOX));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     addressDatabase.insertAddressesForId(messageId, headers);
-    partsDatabase.insertParts(masterSecret, messageId, body);
+    partsDatabase.insertParts(masterSecret, messageId, threadId, body);
 
-    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    notifyConversationListeners(threadId);
+    notifyConversationListListeners();
 
     return messageId;
   }
 
   public void delete(long messageId) {
-    long threadId                   = getThreadIdForMessage(messageId);
     MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
+    SQLiteDatabase database         = databaseHelper.getWritableDatabase();
+    Cursor cursor                   = null;
+
     partDatabase.deleteParts(messageId);
     addrDatabase.deleteAddressesForId(messageId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
-    notifyConversationListeners(threadId);
-  }
+    database.beginTransactionWithListener(changeNotifier);
 
-  public void deleteThread(long threadId) {
-    Set<Long> singleThreadSet = new HashSet<Long>();
-    singleThreadSet.add(threadId);
-    deleteThreads(singleThreadSet);
-  }
-
-  /*package*/ void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = "";
-    Cursor cursor     = null;
-
-    for (long threadId : threadIds) {
-      where += THREAD_ID + " = '" + threadId + "' OR ";
-    }
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {THREAD_ID, DATE_SENT, DATE_RECEIVED, MESSAGE_BOX},
+                              ID_WHERE, new String[] {messageId+""}, null, null, null);
 
-    where = where.substring(0, where.length() - 4);
+      if (cursor == null || !cursor.moveToFirst()) return;
 
-    try {
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, null, null, null, null);
+      long threadId = cursor.getLong(0);
 
-      while (cursor != null && cursor.moveToNext()) {
-        delete(cursor.getLong(0));
-      }
+      database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, cursor.getLong(1) * 1000,
+                                                                 cursor.getLong(2) * 1000, cursor.getLong(3));
+      database.setTransactionSuccessful();
 
+      notifyConversationListeners(threadId);
     } finally {
       if (cursor != null)
         cursor.close();
+
+      database.endTransaction();
     }
   }
 
+  public void deleteThread(long threadId) {
+    deleteInBatches(THREAD_ID + " = ?", new String[] {threadId+""});
+  }
+
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    date          = date / 1000;
-    Cursor cursor = null;
+    date         = date / 1000;
+    String where = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
 
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
+    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
+      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
+    }
 
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
+    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+
+    Log.w("MmsDatabase", "Executing trim query: " + where);
+    deleteInBatches(where, new String[] {threadId+""});
+  }
 
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+  /**
+   * Deletes matching messages a batch at a time, unlinking each batch's part
+   * files once its rows are gone.
+   */
+  private void deleteInBatches(String where, String[] args) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+    while (true) {
+      List<Long> messageIds = new LinkedList<>();
+      Cursor     cursor     = null;
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
+      try {
+        cursor = db.query(TABLE_NAME, new String[] {ID}, where, args, null, null, null,
+                          String.valueOf(DELETE_BATCH_SIZE));
+
+        while (cursor != null && cursor.moveToNext()) {
+          messageIds.add(cursor.getLong(0));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
 
+      if (messageIds.isEmpty()) return;
+
+      Log.w("MmsDatabase", "Deleting " + messageIds.size() + " messages");
+      DatabaseFactory.getPartDatabase(context).deleteOrphanedFiles(deleteMessages(messageIds));
+
+      if (messageIds.size() < DELETE_BATCH_SIZE) return;
+    }
+  }
+
+  /**
+   * Deletes the messages, their addresses and their part rows in one
+   * transaction, without updating their threads.
+   *
+   * @return the part files that may no longer be referenced.
+   */
+  private List<File> deleteMessages(List<Long> messageIds) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      List<File> files = DatabaseFactory.getPartDatabase(context).deletePartRows(messageIds);
+      DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForIds(messageIds);
+      db.delete(TABLE_NAME, ID + " IN (" + getPlaceholders(messageIds.size()) + ")", getIdArgs(messageIds));
+
+      db.setTransactionSuccessful();
+      return files;
     } finally {
-      if (cursor != null)
-        cursor.close();
+      db.endTransaction();
     }
   }
 
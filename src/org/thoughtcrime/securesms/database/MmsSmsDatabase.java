@@ -25,8 +25,12 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -35,6 +39,8 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final int RECEIPT_BATCH_SIZE = 100;
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -104,9 +110,73 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
+  /**
+   * Finds the received date of the length-th newest message in a thread by
+   * reading at most length index entries from each table.
+   *
+   * @return the date in milliseconds, or -1 if the thread is shorter.
+   */
+  long getTrimCutoff(long threadId, int length) {
+    String smsQuery = "SELECT * FROM (SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                      " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                      " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC LIMIT " + length + ")";
+    String mmsQuery = "SELECT * FROM (SELECT " + MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                      " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                      " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC LIMIT " + length + ")";
+
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().rawQuery(smsQuery + " UNION ALL " + mmsQuery +
+                                                             " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                                                             " DESC LIMIT 1 OFFSET " + (length - 1),
+                                                             new String[] {threadId+"", threadId+""});
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Matches a batch of receipts against outgoing SMS and MMS in one
+   * transaction, then notifies each affected conversation once.
+   */
+  public void incrementDeliveryReceiptCounts(List<DeliveryReceipt> receipts) {
+    List<DeliveryReceipt> canonicalReceipts = new ArrayList<>(receipts.size());
+
+    for (DeliveryReceipt receipt : receipts) {
+      try {
+        canonicalReceipts.add(new DeliveryReceipt(Util.canonicalizeNumber(context, receipt.getAddress()),
+                                                  receipt.getTimestamp()));
+      } catch (InvalidNumberException e) {
+        Log.w("MmsSmsDatabase", e);
+      }
+    }
+
+    if (canonicalReceipts.isEmpty()) return;
+
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    Set<Long>      threadIds = new HashSet<>();
+
+    db.beginTransaction();
+
+    try {
+      for (int i=0;i<canonicalReceipts.size();i+=RECEIPT_BATCH_SIZE) {
+        List<DeliveryReceipt> chunk = canonicalReceipts.subList(i, Math.min(i + RECEIPT_BATCH_SIZE, canonicalReceipts.size()));
+
+        DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCounts(chunk, threadIds);
+        DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCounts(chunk, threadIds);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListeners(threadIds);
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String groupBy, String limit) {
@@ -182,7 +252,6 @@ public class MmsSmsDatabase extends Database {
 
     String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
 
-    Log.w("MmsSmsDatabase", "Executing query: " + query);
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     return db.rawQuery(query, null);
   }
@@ -195,6 +264,24 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  public static class DeliveryReceipt {
+    private final String address;
+    private final long   timestamp;
+
+    public DeliveryReceipt(String address, long timestamp) {
+      this.address   = address;
+      this.timestamp = timestamp;
+    }
+
+    public String getAddress() {
+      return address;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+
   public class Reader {
 
     private final Cursor cursor;
@@ -33,6 +33,8 @@ import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.mms.ThumbnailCache;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
@@ -45,11 +47,22 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -78,6 +91,14 @@ public class PartDatabase extends Database {
   private static final String SIZE                    = "data_size";
   private static final String THUMBNAIL               = "thumbnail";
   private static final String ASPECT_RATIO            = "aspect_ratio";
+  private static final String DATA_HASH               = "data_hash";
+  private static final String THREAD_ID               = "thread_id";
+  private static final String MEDIA_CLASS             = "media_class";
+
+  private static final int MEDIA_CLASS_OTHER = 0;
+  private static final int MEDIA_CLASS_IMAGE = 1;
+  private static final int MEDIA_CLASS_VIDEO = 2;
+  private static final int MEDIA_CLASS_AUDIO = 3;
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
     MMS_ID + " INTEGER, " + SEQUENCE + " INTEGER DEFAULT 0, "                        +
@@ -86,28 +107,30 @@ public class PartDatabase extends Database {
     CONTENT_LOCATION + " TEXT, " + CONTENT_TYPE_START + " INTEGER, "                 +
     CONTENT_TYPE_TYPE + " TEXT, " + ENCRYPTED + " INTEGER, "                         +
     PENDING_PUSH_ATTACHMENT + " INTEGER, "+ DATA + " TEXT, " + SIZE + " INTEGER, "   +
-    THUMBNAIL + " TEXT, " + ASPECT_RATIO + " REAL);";
+    THUMBNAIL + " TEXT, " + ASPECT_RATIO + " REAL, " + DATA_HASH + " TEXT, "        +
+    THREAD_ID + " INTEGER, " + MEDIA_CLASS + " INTEGER DEFAULT " + MEDIA_CLASS_OTHER + ");";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
-    "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + PENDING_PUSH_ATTACHMENT + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS part_thread_media_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + MEDIA_CLASS + ");",
   };
 
-  private final static String IMAGES_QUERY = "SELECT " + TABLE_NAME + "." + ID + ", "
+          final static String IMAGES_QUERY = "SELECT " + TABLE_NAME + "." + ID + ", "
                                                        + TABLE_NAME + "." + CONTENT_TYPE + ", "
                                                        + TABLE_NAME + "." + ASPECT_RATIO + ", "
                                                        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.NORMALIZED_DATE_RECEIVED + ", "
                                                        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ADDRESS + " "
                                            + "FROM " + TABLE_NAME + " LEFT JOIN " + MmsDatabase.TABLE_NAME
                                                                   + " ON " + TABLE_NAME + "." + MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " "
-                                           + "WHERE " + MMS_ID + " IN (SELECT " + MmsSmsColumns.ID
-                                                                   + " FROM " + MmsDatabase.TABLE_NAME
-                                                                   + " WHERE " + MmsDatabase.THREAD_ID + " = ?) AND "
-                                                      + CONTENT_TYPE + " LIKE 'image/%' "
+                                           + "WHERE " + TABLE_NAME + "." + THREAD_ID + " = ? AND "
+                                                      + TABLE_NAME + "." + MEDIA_CLASS + " = " + MEDIA_CLASS_IMAGE + " "
                                            + "ORDER BY " + TABLE_NAME + "." + ID + " DESC";
 
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  private final ExecutorService               thumbnailExecutor  = Util.newLifoExecutor(Util.getBackgroundPoolSize());
+  private final Map<Long, FutureTask<Void>> pendingThumbnails = new HashMap<>();
+  private final Object                      dataFileLock      = new Object();
 
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -185,34 +208,72 @@ public class PartDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     Cursor cursor           = null;
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, MMS_ID + " = ?",
-                              new String[] {mmsId+""}, null, null, null);
+    synchronized (dataFileLock) {
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, ID, DATA_HASH}, MMS_ID + " = ?",
+                                new String[] {mmsId+""}, null, null, null);
 
-      while (cursor != null && cursor.moveToNext()) {
-        String data      = cursor.getString(0);
-        String thumbnail = cursor.getString(1);
+        while (cursor != null && cursor.moveToNext()) {
+          String data      = cursor.getString(0);
+          String thumbnail = cursor.getString(1);
+          String hash      = cursor.getString(3);
 
-        if (!TextUtils.isEmpty(data)) {
-          new File(data).delete();
-        }
+          ThumbnailCache.getInstance().remove(cursor.getLong(2));
+
+          if (!TextUtils.isEmpty(data) && !isDataShared(hash, data, MMS_ID + " != ?", mmsId)) {
+            new File(data).delete();
+          }
 
-        if (!TextUtils.isEmpty(thumbnail)) {
-          new File(thumbnail).delete();
+          if (!TextUtils.isEmpty(thumbnail)) {
+            new File(thumbnail).delete();
+          }
         }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
+    }
+  }
+
+  /**
+   * Deletes the part rows of the given messages but leaves their files, which
+   * the caller passes to {@link #deleteOrphanedFiles(List)} once the rows are
+   * gone for good.
+   *
+   * @return the data and thumbnail files the deleted rows referenced.
+   */
+  List<File> deletePartRows(List<Long> mmsIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    List<File>     files    = new LinkedList<>();
+    String         where    = MMS_ID + " IN (" + getPlaceholders(mmsIds.size()) + ")";
+    String[]       args     = getIdArgs(mmsIds);
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID, DATA, THUMBNAIL}, where, args, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        ThumbnailCache.getInstance().remove(cursor.getLong(0));
+
+        if (!cursor.isNull(1)) files.add(new File(cursor.getString(1)));
+        if (!cursor.isNull(2)) files.add(new File(cursor.getString(2)));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
+    database.delete(TABLE_NAME, where, args);
+    return files;
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllParts() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    ThumbnailCache.getInstance().clear();
 
     File   partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
     File[] parts          = partsDirectory.listFiles();
@@ -222,10 +283,100 @@ public class PartDatabase extends Database {
     }
   }
 
-  void insertParts(MasterSecret masterSecret, long mmsId, PduBody body) throws MmsException {
+  public File[] getPartFiles() {
+    File[] files = context.getDir("parts", Context.MODE_PRIVATE).listFiles();
+    return files == null ? new File[0] : files;
+  }
+
+  /**
+   * Collects the data and thumbnail file names of parts with an _id greater
+   * than lastId, at most limit rows at a time. Names rather than paths are
+   * collected, since the same parts directory can be reached through more
+   * than one path, and a restored database may still hold the old one.
+   *
+   * @return the largest _id seen, or -1 if there were no more rows.
+   */
+  public long getReferencedFiles(long lastId, int limit, Set<String> referenced) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+    long           maxId    = -1;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID, DATA, THUMBNAIL}, ID + " > ?",
+                              new String[] {String.valueOf(lastId)}, null, null, ID + " ASC",
+                              String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        maxId = cursor.getLong(0);
+
+        if (!cursor.isNull(1)) referenced.add(new File(cursor.getString(1)).getName());
+        if (!cursor.isNull(2)) referenced.add(new File(cursor.getString(2)).getName());
+      }
+
+      return maxId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Deletes the given files unless a part row has started pointing at one
+   * of them since the caller's scan.
+   *
+   * @return the number of bytes reclaimed.
+   */
+  public long deleteOrphanedFiles(List<File> candidates) {
+    if (candidates.isEmpty()) return 0;
+
+    SQLiteDatabase database  = databaseHelper.getReadableDatabase();
+    StringBuilder  where     = new StringBuilder();
+    String[]       args      = new String[candidates.size() * 2];
+    Set<String>    stillUsed = new HashSet<>();
+    long           reclaimed = 0;
+
+    for (int i=0;i<candidates.size();i++) {
+      String pattern = "%/" + candidates.get(i).getName().replace("!", "!!").replace("%", "!%").replace("_", "!_");
+
+      if (i > 0) where.append(" OR ");
+      where.append(DATA).append(" LIKE ? ESCAPE '!' OR ").append(THUMBNAIL).append(" LIKE ? ESCAPE '!'");
+
+      args[i * 2]     = pattern;
+      args[i * 2 + 1] = pattern;
+    }
+
+    synchronized (dataFileLock) {
+      Cursor cursor = null;
+
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, where.toString(), args, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          if (!cursor.isNull(0)) stillUsed.add(new File(cursor.getString(0)).getName());
+          if (!cursor.isNull(1)) stillUsed.add(new File(cursor.getString(1)).getName());
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      for (File candidate : candidates) {
+        if (stillUsed.contains(candidate.getName())) continue;
+
+        long length = candidate.length();
+
+        if (candidate.delete()) reclaimed += length;
+        else                    Log.w(TAG, "Couldn't delete orphaned part file: " + candidate.getName());
+      }
+    }
+
+    return reclaimed;
+  }
+
+  void insertParts(MasterSecret masterSecret, long mmsId, long threadId, PduBody body) throws MmsException {
     for (int i=0;i<body.getPartsNum();i++) {
       PduPart part = body.getPart(i);
-      long partId = insertPart(masterSecret, part, mmsId, part.getThumbnail());
+      long partId = insertPart(masterSecret, part, mmsId, threadId, part.getThumbnail());
       Log.w(TAG, "Inserted part at ID: " + partId);
     }
   }
@@ -294,6 +445,7 @@ public class PartDatabase extends Database {
 
     if (part.getContentType() != null) {
       contentValues.put(CONTENT_TYPE, Util.toIsoString(part.getContentType()));
+      contentValues.put(MEDIA_CLASS, getMediaClass(Util.toIsoString(part.getContentType())));
 
       if (Util.toIsoString(part.getContentType()).equals(ContentType.APP_SMIL)) {
         contentValues.put(SEQUENCE, -1);
@@ -328,6 +480,15 @@ public class PartDatabase extends Database {
     return contentValues;
   }
 
+  private static int getMediaClass(String contentType) {
+    String type = contentType.toLowerCase(Locale.US);
+
+    if      (ContentType.isImageType(type)) return MEDIA_CLASS_IMAGE;
+    else if (ContentType.isVideoType(type)) return MEDIA_CLASS_VIDEO;
+    else if (ContentType.isAudioType(type)) return MEDIA_CLASS_AUDIO;
+    else                                    return MEDIA_CLASS_OTHER;
+  }
+
   private InputStream getPartInputStream(MasterSecret masterSecret, File path)
       throws FileNotFoundException
   {
@@ -368,22 +529,97 @@ public class PartDatabase extends Database {
     }
   }
 
-  private Pair<File, Long> writePartData(MasterSecret masterSecret, PduPart part, InputStream in)
+  private PartData writePartData(MasterSecret masterSecret, PduPart part, InputStream in)
       throws MmsException
   {
     try {
       File         partsDirectory  = context.getDir("parts", Context.MODE_PRIVATE);
       File         dataFile        = File.createTempFile("part", ".mms", partsDirectory);
       OutputStream out             = getPartOutputStream(masterSecret, dataFile, part);
-      long         plaintextLength = Util.copy(in, out);
+      Mac          digest          = getDataDigest(masterSecret);
+      byte[]       buffer          = new byte[4096];
+      long         plaintextLength = 0;
+      int          read;
+
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        plaintextLength += read;
+      }
 
-      return new Pair<>(dataFile, plaintextLength);
+      in.close();
+      out.close();
+
+      return new PartData(dataFile, plaintextLength, Base64.encodeBytes(digest.doFinal()));
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
-  private Pair<File, Long> writePartData(MasterSecret masterSecret, PduPart part)
+  private Mac getDataDigest(MasterSecret masterSecret) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(masterSecret.getMacKey().getEncoded(), "HmacSHA256"));
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Points freshly written part data at an existing blob with the same
+   * content, if there is one, and deletes the redundant copy. Callers must
+   * hold dataFileLock until the row referencing the result is written.
+   */
+  private PartData deduplicate(PartData partData) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA}, DATA_HASH + " = ? AND " + SIZE + " = ? AND " + DATA + " IS NOT NULL",
+                              new String[] {partData.hash, String.valueOf(partData.length)}, null, null, null, "1");
+
+      if (cursor != null && cursor.moveToFirst()) {
+        File existing = new File(cursor.getString(0));
+
+        if (existing.exists() && !existing.equals(partData.file)) {
+          long reclaimed = partData.file.length();
+
+          if (!partData.file.delete()) {
+            Log.w(TAG, "Couldn't delete duplicate part file");
+          }
+
+          Log.w(TAG, "Deduplicated part data, reclaimed " + reclaimed + " bytes");
+          return new PartData(existing, partData.length, partData.hash);
+        }
+      }
+
+      return partData;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private boolean isDataShared(String hash, String data, String excludeClause, long excludeId) {
+    if (hash == null) return false;
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID},
+                              DATA_HASH + " = ? AND " + DATA + " = ? AND " + excludeClause,
+                              new String[] {hash, data, String.valueOf(excludeId)}, null, null, null, "1");
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private PartData writePartData(MasterSecret masterSecret, PduPart part)
       throws MmsException
   {
     try {
@@ -409,8 +645,24 @@ public class PartDatabase extends Database {
       return dataStream;
     }
 
+    FutureTask<Void> task;
+
+    synchronized (pendingThumbnails) {
+      task = pendingThumbnails.get(partId);
+
+      if (task == null) {
+        task = new ThumbnailGenerateTask(masterSecret, partId);
+        pendingThumbnails.put(partId, task);
+      }
+    }
+
+    // Runs a task that's still queued on this thread rather than waiting behind
+    // the rest of the backlog. A no-op if it's already running or done.
+    task.run();
+
     try {
-      return thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId)).get();
+      task.get();
+      return getDataStream(masterSecret, partId, THUMBNAIL);
     } catch (InterruptedException ie) {
       throw new AssertionError("interrupted");
     } catch (ExecutionException ee) {
@@ -419,6 +671,36 @@ public class PartDatabase extends Database {
     }
   }
 
+  private void queueThumbnail(MasterSecret masterSecret, long partId) {
+    synchronized (pendingThumbnails) {
+      if (pendingThumbnails.containsKey(partId)) return;
+
+      FutureTask<Void> task = new ThumbnailGenerateTask(masterSecret, partId);
+      pendingThumbnails.put(partId, task);
+      thumbnailExecutor.execute(task);
+    }
+  }
+
+  private void generateThumbnail(MasterSecret masterSecret, long partId) throws Exception {
+    InputStream stream = getDataStream(masterSecret, partId, THUMBNAIL);
+
+    if (stream != null) {
+      stream.close();
+      return;
+    }
+
+    try {
+      PduPart part = getPart(partId);
+      ThumbnailData data = MediaUtil.generateThumbnail(context, masterSecret, part.getDataUri(), Util.toIsoString(part.getContentType()));
+      if (data == null) {
+        return;
+      }
+      updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
+    } catch (BitmapDecodingException bde) {
+      throw new IOException(bde);
+    }
+  }
+
   private PduPart getPart(Cursor cursor) {
     PduPart part   = new PduPart();
 
@@ -429,32 +711,42 @@ public class PartDatabase extends Database {
     return part;
   }
 
-  private long insertPart(MasterSecret masterSecret, PduPart part, long mmsId, Bitmap thumbnail) throws MmsException {
+  private long insertPart(MasterSecret masterSecret, PduPart part, long mmsId, long threadId, Bitmap thumbnail)
+      throws MmsException
+  {
     Log.w(TAG, "inserting part to mms " + mmsId);
-    SQLiteDatabase   database = databaseHelper.getWritableDatabase();
-    Pair<File, Long> partData = null;
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    PartData       partData = null;
 
     if (!part.isPendingPush()) {
       partData = writePartData(masterSecret, part);
-      Log.w(TAG, "Wrote part to file: " + partData.first.getAbsolutePath());
+      Log.w(TAG, "Wrote part to file: " + partData.file.getAbsolutePath());
     }
 
     ContentValues contentValues = getContentValuesForPart(part);
     contentValues.put(MMS_ID, mmsId);
+    contentValues.put(THREAD_ID, threadId);
 
-    if (partData != null) {
-      contentValues.put(DATA, partData.first.getAbsolutePath());
-      contentValues.put(SIZE, partData.second);
-    }
+    long partId;
 
-    long partId = database.insert(TABLE_NAME, null, contentValues);
+    synchronized (dataFileLock) {
+      if (partData != null) {
+        partData = deduplicate(partData);
+
+        contentValues.put(DATA, partData.file.getAbsolutePath());
+        contentValues.put(SIZE, partData.length);
+        contentValues.put(DATA_HASH, partData.hash);
+      }
+
+      partId = database.insert(TABLE_NAME, null, contentValues);
+    }
 
     if (thumbnail != null) {
       Log.w(TAG, "inserting pre-generated thumbnail");
       ThumbnailData data = new ThumbnailData(thumbnail);
       updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
     } else if (!part.isPendingPush()) {
-      thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId));
+      queueThumbnail(masterSecret, partId);
     }
 
     return partId;
@@ -464,22 +756,25 @@ public class PartDatabase extends Database {
                                    long partId, PduPart part, InputStream data)
       throws MmsException
   {
-    SQLiteDatabase   database = databaseHelper.getWritableDatabase();
-    Pair<File, Long> partData = writePartData(masterSecret, part, data);
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    PartData       partData = writePartData(masterSecret, part, data);
 
     part.setContentDisposition(new byte[0]);
     part.setPendingPush(false);
 
     ContentValues values = getContentValuesForPart(part);
 
-    if (partData != null) {
-      values.put(DATA, partData.first.getAbsolutePath());
-      values.put(SIZE, partData.second);
-    }
+    synchronized (dataFileLock) {
+      partData = deduplicate(partData);
 
-    database.update(TABLE_NAME, values, ID_WHERE, new String[]{partId+""});
+      values.put(DATA, partData.file.getAbsolutePath());
+      values.put(SIZE, partData.length);
+      values.put(DATA_HASH, partData.hash);
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId));
+      database.update(TABLE_NAME, values, ID_WHERE, new String[]{partId+""});
+    }
+
+    queueThumbnail(masterSecret, partId);
 
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
@@ -487,32 +782,44 @@ public class PartDatabase extends Database {
   public void updatePartData(MasterSecret masterSecret, PduPart part, InputStream data)
       throws MmsException
   {
-    SQLiteDatabase   database = databaseHelper.getWritableDatabase();
-    Pair<File, Long> partData = writePartData(masterSecret, part, data);
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    PartData       partData = writePartData(masterSecret, part, data);
 
     if (partData == null) throw new MmsException("couldn't update part data");
 
-    Cursor cursor = null;
-    try {
-      cursor = database.query(TABLE_NAME, new String[]{DATA}, ID_WHERE,
-                              new String[]{part.getId()+""}, null, null, null);
+    synchronized (dataFileLock) {
+      Cursor cursor = null;
+      try {
+        cursor = database.query(TABLE_NAME, new String[]{DATA, DATA_HASH}, ID_WHERE,
+                                new String[]{part.getId()+""}, null, null, null);
 
-      if (cursor != null && cursor.moveToFirst()) {
-        int dataColumn = cursor.getColumnIndexOrThrow(DATA);
-        if (!cursor.isNull(dataColumn) && !new File(cursor.getString(dataColumn)).delete()) {
+        if (cursor != null && cursor.moveToFirst()) {
+          int    dataColumn = cursor.getColumnIndexOrThrow(DATA);
+          String oldHash    = cursor.getString(cursor.getColumnIndexOrThrow(DATA_HASH));
+
+          if (!cursor.isNull(dataColumn)                                                  &&
+              !isDataShared(oldHash, cursor.getString(dataColumn), ID + " != ?", part.getId()) &&
+              !new File(cursor.getString(dataColumn)).delete())
+          {
             Log.w(TAG, "Couldn't delete old part file");
+          }
         }
+      } finally {
+        if (cursor != null) cursor.close();
       }
-    } finally {
-      if (cursor != null) cursor.close();
-    }
-    ContentValues values = new ContentValues(2);
-    values.put(DATA, partData.first.getAbsolutePath());
-    values.put(SIZE, partData.second);
 
-    part.setDataSize(partData.second);
+      partData = deduplicate(partData);
+
+      ContentValues values = new ContentValues(3);
+      values.put(DATA, partData.file.getAbsolutePath());
+      values.put(SIZE, partData.length);
+      values.put(DATA_HASH, partData.hash);
+
+      part.setDataSize(partData.length);
+
+      database.update(TABLE_NAME, values, ID_WHERE, new String[] {part.getId()+""});
+    }
 
-    database.update(TABLE_NAME, values, ID_WHERE, new String[] {part.getId()+""});
     Log.w(TAG, "updated data for part #" + part.getId());
   }
 
@@ -521,15 +828,28 @@ public class PartDatabase extends Database {
   {
     Log.w(TAG, "updating part thumbnail for #" + partId);
 
-    Pair<File, Long> thumbnailFile = writePartData(masterSecret, part, in);
+    PartData thumbnailFile = writePartData(masterSecret, part, in);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     ContentValues  values   = new ContentValues(2);
 
-    values.put(THUMBNAIL, thumbnailFile.first.getAbsolutePath());
+    values.put(THUMBNAIL, thumbnailFile.file.getAbsolutePath());
     values.put(ASPECT_RATIO, aspectRatio);
 
     database.update(TABLE_NAME, values, ID_WHERE, new String[]{partId+""});
+    ThumbnailCache.getInstance().remove(partId);
+  }
+
+  private static class PartData {
+    private final File   file;
+    private final long   length;
+    private final String hash;
+
+    private PartData(File file, long length, String hash) {
+      this.file   = file;
+      this.length = length;
+      this.hash   = hash;
+    }
   }
 
   public static class ImageRecord {
@@ -573,33 +893,30 @@ public class PartDatabase extends Database {
     }
   }
 
-  @VisibleForTesting class ThumbnailFetchCallable implements Callable<InputStream> {
-    private final MasterSecret masterSecret;
-    private final long         partId;
+  /**
+   * Generates a part's thumbnail at most once, no matter how many callers
+   * are waiting on it. Removes itself from the pending set once done.
+   */
+  private class ThumbnailGenerateTask extends FutureTask<Void> {
+    private final long partId;
+
+    public ThumbnailGenerateTask(final MasterSecret masterSecret, final long partId) {
+      super(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          generateThumbnail(masterSecret, partId);
+          return null;
+        }
+      });
 
-    public ThumbnailFetchCallable(MasterSecret masterSecret, long partId) {
-      this.masterSecret = masterSecret;
-      this.partId       = partId;
+      this.partId = partId;
     }
 
     @Override
-    public InputStream call() throws Exception {
-      final InputStream stream = getDataStream(masterSecret, partId, THUMBNAIL);
-      if (stream != null) {
-        return stream;
+    protected void done() {
+      synchronized (pendingThumbnails) {
+        pendingThumbnails.remove(partId);
       }
-
-      try {
-        PduPart part = getPart(partId);
-        ThumbnailData data = MediaUtil.generateThumbnail(context, masterSecret, part.getDataUri(), Util.toIsoString(part.getContentType()));
-        if (data == null) {
-          return null;
-        }
-        updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
-      } catch (BitmapDecodingException bde) {
-        throw new IOException(bde);
-      }
-      return getDataStream(masterSecret, partId, THUMBNAIL);
     }
   }
 }
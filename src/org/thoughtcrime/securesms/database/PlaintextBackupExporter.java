@@ -2,21 +2,59 @@ package org.thoughtcrime.securesms.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
 
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Writes SMS and the text of MMS to an XML backup. Messages are paged by id
+ * rather than by offset, each page is decrypted in parallel batches, and the
+ * batches are written out in id order as they complete.
+ */
 public class PlaintextBackupExporter {
 
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final int BATCH_SIZE   = 100;
+  private static final int LOG_INTERVAL = 5000;
+
+  public interface ProgressListener {
+    public void onProgress(int exported, int total);
+  }
+
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
+  {
+    exportPlaintextToSd(context, masterSecret, false, null);
+  }
+
+  public static void exportPlaintextToSd(Context context, MasterSecret masterSecret,
+                                         boolean compress, ProgressListener listener)
+      throws NoExternalStorageException, IOException
   {
     verifyExternalStorageForPlaintextExport();
-    exportPlaintext(context, masterSecret);
+    exportPlaintext(context, masterSecret, compress, listener);
   }
 
   private static void verifyExternalStorageForPlaintextExport() throws NoExternalStorageException {
@@ -29,38 +67,226 @@ public class PlaintextBackupExporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
-  private static void exportPlaintext(Context context, MasterSecret masterSecret)
+  private static void exportPlaintext(Context context, MasterSecret masterSecret,
+                                      boolean compress, ProgressListener listener)
+      throws IOException
+  {
+    SmsDatabase      smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase      mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    int              threads     = Util.getBackgroundPoolSize();
+    int              pageSize    = BATCH_SIZE * threads;
+    int              count       = smsDatabase.getMessageCount() + mmsDatabase.getTextMessageCount();
+    String           path        = getPlaintextExportDirectoryPath() + (compress ? XmlBackup.COMPRESSED_SUFFIX : "");
+    XmlBackup.Writer writer      = new XmlBackup.Writer(path, count, compress);
+    ExecutorService  executor    = Executors.newFixedThreadPool(threads);
+    Progress         progress    = new Progress(count, listener);
+
+    try {
+      List<Long> ids;
+      long       lastId = 0;
+
+      while (!(ids = smsDatabase.getMessageIdsAfter(lastId, pageSize)).isEmpty()) {
+        List<Future<List<XmlBackup.XmlBackupItem>>> batches = new LinkedList<>();
+
+        for (int i=0;i<ids.size();i+=BATCH_SIZE) {
+          long firstId = ids.get(i);
+          long batchId = ids.get(Math.min(i + BATCH_SIZE, ids.size()) - 1);
+
+          batches.add(executor.submit(new SmsBatch(context, masterSecret, firstId, batchId)));
+        }
+
+        write(writer, batches, progress);
+        lastId = ids.get(ids.size() - 1);
+      }
+
+      lastId = 0;
+
+      while (!(ids = mmsDatabase.getTextMessageIdsAfter(lastId, pageSize)).isEmpty()) {
+        List<Future<List<XmlBackup.XmlBackupItem>>> batches = new LinkedList<>();
+
+        for (int i=0;i<ids.size();i+=BATCH_SIZE) {
+          long firstId = ids.get(i);
+          long batchId = ids.get(Math.min(i + BATCH_SIZE, ids.size()) - 1);
+
+          batches.add(executor.submit(new MmsBatch(context, masterSecret, firstId, batchId)));
+        }
+
+        write(writer, batches, progress);
+        lastId = ids.get(ids.size() - 1);
+      }
+    } finally {
+      executor.shutdownNow();
+      writer.close();
+    }
+
+    progress.finish();
+  }
+
+  private static void write(XmlBackup.Writer writer, List<Future<List<XmlBackup.XmlBackupItem>>> batches,
+                            Progress progress)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    try {
+      for (Future<List<XmlBackup.XmlBackupItem>> batch : batches) {
+        List<XmlBackup.XmlBackupItem> items = batch.get();
+
+        for (XmlBackup.XmlBackupItem item : items) {
+          writer.writeItem(item);
+        }
+
+        progress.add(items.size());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static class SmsBatch implements Callable<List<XmlBackup.XmlBackupItem>> {
+    private final Context      context;
+    private final MasterSecret masterSecret;
+    private final long         firstId;
+    private final long         lastId;
 
+    private SmsBatch(Context context, MasterSecret masterSecret, long firstId, long lastId) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+      this.firstId      = firstId;
+      this.lastId       = lastId;
+    }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+    @Override
+    public List<XmlBackup.XmlBackupItem> call() {
+      List<XmlBackup.XmlBackupItem> items  = new LinkedList<>();
+      EncryptingSmsDatabase.Reader  reader = DatabaseFactory.getEncryptingSmsDatabase(context)
+                                                            .getMessagesBetween(masterSecret, firstId, lastId);
+      SmsMessageRecord record;
 
-    do {
-      if (reader != null)
+      try {
+        while ((record = reader.getNext()) != null) {
+          items.add(new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                                record.getDateReceived(),
+                                                MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                                null, record.getDisplayBody().toString(), null,
+                                                1, record.getDeliveryStatus()));
+        }
+      } finally {
         reader.close();
+      }
+
+      return items;
+    }
+  }
+
+  private static class MmsBatch implements Callable<List<XmlBackup.XmlBackupItem>> {
+    private final Context      context;
+    private final MasterCipher masterCipher;
+    private final long         firstId;
+    private final long         lastId;
+
+    private final Map<Long, String> threadAddresses = new HashMap<>();
+
+    private MmsBatch(Context context, MasterSecret masterSecret, long firstId, long lastId) {
+      this.context      = context;
+      this.masterCipher = new MasterCipher(masterSecret);
+      this.firstId      = firstId;
+      this.lastId       = lastId;
+    }
+
+    @Override
+    public List<XmlBackup.XmlBackupItem> call() {
+      List<XmlBackup.XmlBackupItem> items  = new LinkedList<>();
+      Cursor                        cursor = null;
+
+      try {
+        cursor = DatabaseFactory.getMmsDatabase(context).getTextMessagesBetween(firstId, lastId);
+
+        while (cursor != null && cursor.moveToNext()) {
+          long   threadId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
+          String address  = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.ADDRESS));
+          long   date     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+          long   box      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+          String body     = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.BODY));
+
+          items.add(new XmlBackup.XmlBackupItem(0, getAddress(threadId, address), date,
+                                                MmsSmsColumns.Types.translateToSystemBaseType(box),
+                                                null, getBody(box, body), null,
+                                                1, SmsDatabase.Status.STATUS_NONE));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      return items;
+    }
+
+    private String getAddress(long threadId, String address) {
+      if (!TextUtils.isEmpty(address) && !address.equals("insert-address-token")) {
+        return address;
+      }
+
+      String threadAddress = threadAddresses.get(threadId);
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+      if (threadAddress == null) {
+        Recipients recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+        if (recipients == null || recipients.isEmpty()) threadAddress = "null";
+        else                                            threadAddress = recipients.getPrimaryRecipient().getNumber();
+
+        threadAddresses.put(threadId, threadAddress);
+      }
+
+      return threadAddress;
+    }
+
+    private String getBody(long box, String body) {
+      if (!MmsSmsColumns.Types.isSymmetricEncryption(box)) {
+        return body;
+      }
+
+      try {
+        return masterCipher.decryptBody(body);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        return context.getString(R.string.MmsDatabase_error_decrypting_message);
+      }
+    }
+  }
+
+  private static class Progress {
+    private final int              total;
+    private final ProgressListener listener;
+    private final long             start = System.currentTimeMillis();
+
+    private int exported;
+
+    private Progress(int total, ProgressListener listener) {
+      this.total    = total;
+      this.listener = listener;
+    }
+
+    private void add(int count) {
+      exported += count;
+
+      if (listener != null) {
+        listener.onProgress(exported, total);
+      }
 
-        writer.writeItem(item);
+      if (exported / LOG_INTERVAL != (exported - count) / LOG_INTERVAL) {
+        log();
       }
+    }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+    private void finish() {
+      log();
+    }
 
-    writer.close();
+    private void log() {
+      long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+      Log.w(TAG, "Exported " + exported + " of " + total + " messages in " + elapsed + "ms, " +
+                 (exported * 1000L / elapsed) + " messages/s");
+    }
   }
 }
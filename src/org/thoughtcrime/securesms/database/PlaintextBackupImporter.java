@@ -31,7 +31,7 @@ public class PlaintextBackupImporter {
 
   private static void verifyExternalStorageForPlaintextImport() throws NoExternalStorageException {
     if (!Environment.getExternalStorageDirectory().canRead() ||
-        !(new File(getPlaintextExportDirectoryPath()).exists()))
+        !(new File(getPlaintextImportPath()).exists()))
       throw new NoExternalStorageException();
   }
 
@@ -40,6 +40,14 @@ public class PlaintextBackupImporter {
     return sdDirectory.getAbsolutePath() + File.separator + "TextSecurePlaintextBackup.xml";
   }
 
+  private static String getPlaintextImportPath() {
+    String path       = getPlaintextExportDirectoryPath();
+    String compressed = path + XmlBackup.COMPRESSED_SUFFIX;
+
+    if (!new File(path).exists() && new File(compressed).exists()) return compressed;
+    else                                                           return path;
+  }
+
   private static void importPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
@@ -49,7 +57,7 @@ public class PlaintextBackupImporter {
 
     try {
       ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
+      XmlBackup      backup          = new XmlBackup(getPlaintextImportPath());
       MasterCipher   masterCipher    = new MasterCipher(masterSecret);
       Set<Long>      modifiedThreads = new HashSet<Long>();
       XmlBackup.XmlBackupItem item;
@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Times every query cursor the app's databases create, up to the first
+ * window fill where SQLite actually runs the query, and keeps per-shape
+ * latency histograms and row counts. Literals are stripped so queries that
+ * only differ by id share a shape. The first time a shape is slow its query
+ * plan is captured, so full table scans show up in submitted debug logs.
+ *
+ * Off unless turned on with the query profiling preference, in which case
+ * cursors are created exactly as they would be without a factory.
+ */
+public class QueryProfiler implements SQLiteDatabase.CursorFactory {
+
+  private static final String TAG = QueryProfiler.class.getSimpleName();
+
+  private static final long   SLOW_QUERY_MICROS = 100 * 1000;
+  private static final int    MAX_SHAPES        = 200;
+  private static final int    REPORT_SHAPES     = 25;
+  private static final int    SHAPE_CACHE_SIZE  = 500;
+  private static final long[] BUCKET_MILLIS     = {1, 4, 16, 64, 256, 1024};
+
+  private static final String  QUERY_PREFIX  = "SQLiteQuery: ";
+  private static final Pattern STRINGS       = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBERS       = Pattern.compile("\\b\\d+\\b");
+  private static final Pattern PLACEHOLDERS  = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern WHITESPACE    = Pattern.compile("\\s+");
+
+  private static final QueryProfiler instance = new QueryProfiler();
+
+  private final Map<String, Shape>  shapes     = new HashMap<>();
+  private final Map<String, String> shapeCache = new LRUCache<>(SHAPE_CACHE_SIZE);
+  private final Executor            explainer  = Executors.newSingleThreadExecutor();
+
+  private volatile boolean enabled;
+
+  private long untracked;
+
+  public static QueryProfiler getInstance() {
+    return instance;
+  }
+
+  private QueryProfiler() {}
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+    if (enabled) return new ProfiledCursor(db, masterQuery, editTable, query);
+    else         return new SQLiteCursor(db, masterQuery, editTable, query);
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Writes the report to the log, one line at a time so that nothing is
+   * truncated, for the debug log submission to pick up.
+   */
+  public void logReport() {
+    for (String line : getReport().split("\n")) {
+      Log.w(TAG, line);
+    }
+  }
+
+  public String getReport() {
+    if (!enabled) return "Query profiling is off";
+
+    List<Map.Entry<String, Shape>> entries;
+    long                           total = 0;
+    long                           overLimit;
+
+    synchronized (shapes) {
+      entries   = new ArrayList<>(shapes.size());
+      overLimit = untracked;
+
+      for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+        entries.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().copy()));
+        total += entry.getValue().count;
+      }
+    }
+
+    Collections.sort(entries, new Comparator<Map.Entry<String, Shape>>() {
+      @Override
+      public int compare(Map.Entry<String, Shape> lhs, Map.Entry<String, Shape> rhs) {
+        long difference = rhs.getValue().totalMicros - lhs.getValue().totalMicros;
+        return difference == 0 ? 0 : (difference > 0 ? 1 : -1);
+      }
+    });
+
+    StringBuilder report = new StringBuilder();
+    report.append("Query profile: ").append(total).append(" queries in ").append(entries.size()).append(" shapes");
+    if (overLimit > 0) report.append(", ").append(overLimit).append(" queries over the shape limit");
+    report.append(", buckets <=").append(BUCKET_MILLIS[0]);
+    for (int i=1;i<BUCKET_MILLIS.length;i++) report.append('/').append(BUCKET_MILLIS[i]);
+    report.append("/+ms\n");
+
+    for (int i=0;i<entries.size() && i<REPORT_SHAPES;i++) {
+      Shape shape = entries.get(i).getValue();
+
+      report.append(shape.count).append("x ")
+            .append("total ").append(shape.totalMicros / 1000).append("ms, ")
+            .append("avg ").append(shape.totalMicros / shape.count / 1000).append("ms, ")
+            .append("max ").append(shape.maxMicros / 1000).append("ms, ")
+            .append("rows avg ").append(shape.totalRows / shape.count).append(", max ").append(shape.maxRows)
+            .append(", histogram ");
+
+      for (int j=0;j<shape.buckets.length;j++) {
+        if (j > 0) report.append('/');
+        report.append(shape.buckets[j]);
+      }
+
+      report.append(": ").append(entries.get(i).getKey()).append('\n');
+
+      if (shape.plan != null) {
+        report.append("  plan").append(shape.plan.contains("SCAN TABLE") ? " (table scan)" : "")
+              .append(": ").append(shape.plan).append('\n');
+      }
+    }
+
+    return report.toString();
+  }
+
+  private void record(final SQLiteDatabase db, final String sql, long micros, int rows) {
+    if (sql.startsWith("EXPLAIN")) return;
+
+    boolean explain = false;
+    String  key;
+    Shape   shape;
+
+    synchronized (shapes) {
+      key = shapeCache.get(sql);
+
+      if (key == null) {
+        key = getShape(sql);
+        shapeCache.put(sql, key);
+      }
+
+      shape = shapes.get(key);
+
+      if (shape == null && shapes.size() >= MAX_SHAPES) {
+        untracked++;
+        return;
+      } else if (shape == null) {
+        shape = new Shape();
+        shapes.put(key, shape);
+      }
+
+      shape.add(micros, rows);
+
+      if (micros >= SLOW_QUERY_MICROS && !shape.explained) {
+        shape.explained = true;
+        explain         = true;
+      }
+    }
+
+    if (explain) {
+      Log.w(TAG, "Slow query, " + (micros / 1000) + "ms for " + rows + " rows: " + key);
+
+      final Shape explained = shape;
+
+      explainer.execute(new Runnable() {
+        @Override
+        public void run() {
+          String plan = explain(db, sql);
+
+          synchronized (shapes) {
+            explained.plan = plan;
+          }
+        }
+      });
+    }
+  }
+
+  private static String explain(SQLiteDatabase db, String sql) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+
+      StringBuilder plan = new StringBuilder();
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (plan.length() > 0) plan.append("; ");
+        plan.append(cursor.getString(cursor.getColumnCount() - 1));
+      }
+
+      return plan.toString();
+    } catch (SQLiteException | IllegalStateException e) {
+      Log.w(TAG, e);
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  static String getShape(String sql) {
+    String shape = STRINGS.matcher(sql).replaceAll("?");
+    shape = NUMBERS.matcher(shape).replaceAll("?");
+    shape = PLACEHOLDERS.matcher(shape).replaceAll("?...");
+    return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+  }
+
+  private static class Shape {
+    private final long[] buckets = new long[BUCKET_MILLIS.length + 1];
+
+    private long    count;
+    private long    totalMicros;
+    private long    maxMicros;
+    private long    totalRows;
+    private long    maxRows;
+    private boolean explained;
+    private String  plan;
+
+    private void add(long micros, int rows) {
+      int bucket = 0;
+      while (bucket < BUCKET_MILLIS.length && micros > BUCKET_MILLIS[bucket] * 1000) bucket++;
+
+      buckets[bucket]++;
+      count++;
+      totalMicros += micros;
+      totalRows   += rows;
+      maxMicros    = Math.max(maxMicros, micros);
+      maxRows      = Math.max(maxRows, rows);
+    }
+
+    private Shape copy() {
+      Shape copy = new Shape();
+      System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+      copy.count       = count;
+      copy.totalMicros = totalMicros;
+      copy.maxMicros   = maxMicros;
+      copy.totalRows   = totalRows;
+      copy.maxRows     = maxRows;
+      copy.explained   = explained;
+      copy.plan        = plan;
+      return copy;
+    }
+  }
+
+  private class ProfiledCursor extends SQLiteCursor {
+    private final SQLiteDatabase db;
+    private final String         sql;
+
+    private boolean recorded;
+
+    @SuppressWarnings("deprecation")
+    public ProfiledCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+      super(db, driver, editTable, query);
+      this.db  = db;
+      this.sql = getSql(query);
+    }
+
+    @Override
+    public int getCount() {
+      if (recorded) return super.getCount();
+
+      recorded = true;
+
+      long start = System.nanoTime();
+      int  count = super.getCount();
+
+      record(db, sql, (System.nanoTime() - start) / 1000, count);
+      return count;
+    }
+
+    private String getSql(SQLiteQuery query) {
+      String description = query.toString();
+
+      if (description.startsWith(QUERY_PREFIX)) return description.substring(QUERY_PREFIX.length());
+      else                                      return description;
+    }
+  }
+}
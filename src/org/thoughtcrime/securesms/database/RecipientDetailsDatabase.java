@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the contact details last resolved for each address, so that
+ * recipients can be rendered without a contacts provider query after the
+ * process restarts. An entry without a lookup URI records that the address
+ * didn't match any contact.
+ */
+public class RecipientDetailsDatabase extends Database {
+
+  private static final String TABLE_NAME  = "recipient_details";
+  private static final String ID          = "_id";
+  private static final String ADDRESS     = "address";
+  private static final String NAME        = "name";
+  private static final String NUMBER      = "number";
+  private static final String LOOKUP_URI  = "lookup_uri";
+  private static final String CONTACT_URI = "contact_uri";
+  private static final String PHOTO_ID    = "photo_id";
+  private static final String TIMESTAMP   = "timestamp";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                            ADDRESS + " TEXT UNIQUE, " + NAME + " TEXT, " + NUMBER + " TEXT, " +
+                                            LOOKUP_URI + " TEXT, " + CONTACT_URI + " TEXT, " +
+                                            PHOTO_ID + " INTEGER DEFAULT 0, " + TIMESTAMP + " INTEGER);";
+
+  public RecipientDetailsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public Map<String, CachedDetails> getAllDetails() {
+    Map<String, CachedDetails> results = new HashMap<>();
+    Cursor                     cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ADDRESS, NAME, NUMBER, LOOKUP_URI,
+                                                                                    CONTACT_URI, PHOTO_ID},
+                                                          null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.put(cursor.getString(0), new CachedDetails(cursor.getString(1), cursor.getString(2),
+                                                           cursor.getString(3), cursor.getString(4),
+                                                           cursor.getLong(5)));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public void setDetails(Map<String, CachedDetails> details) {
+    SQLiteDatabase           db        = databaseHelper.getWritableDatabase();
+    SearchDatabase           search    = DatabaseFactory.getSearchDatabase(context);
+    CanonicalAddressDatabase addresses = CanonicalAddressDatabase.getInstance(context);
+    long                     timestamp = System.currentTimeMillis();
+
+    db.beginTransaction();
+
+    try {
+      for (Map.Entry<String, CachedDetails> entry : details.entrySet()) {
+        CachedDetails cached = entry.getValue();
+        ContentValues values = new ContentValues(7);
+        values.put(ADDRESS, entry.getKey());
+        values.put(NAME, cached.name);
+        values.put(NUMBER, cached.number);
+        values.put(LOOKUP_URI, cached.lookupUri);
+        values.put(CONTACT_URI, cached.contactUri);
+        values.put(PHOTO_ID, cached.photoId);
+        values.put(TIMESTAMP, timestamp);
+
+        db.replace(TABLE_NAME, null, values);
+
+        search.setRecipient(db, addresses.getCanonicalAddressId(entry.getKey()), cached.name,
+                            SearchDatabase.getSearchableNumber(entry.getKey(), cached.number));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public static class CachedDetails {
+    private final String name;
+    private final String number;
+    private final String lookupUri;
+    private final String contactUri;
+    private final long   photoId;
+
+    public CachedDetails(String name, String number, String lookupUri, String contactUri, long photoId) {
+      this.name       = name;
+      this.number     = number;
+      this.lookupUri  = lookupUri;
+      this.contactUri = contactUri;
+      this.photoId    = photoId;
+    }
+
+    public boolean isContact() {
+      return lookupUri != null;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getNumber() {
+      return number;
+    }
+
+    public Uri getLookupUri() {
+      return lookupUri == null ? null : Uri.parse(lookupUri);
+    }
+
+    public Uri getContactUri() {
+      return contactUri == null ? null : Uri.parse(contactUri);
+    }
+
+    public long getPhotoId() {
+      return photoId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof CachedDetails)) return false;
+
+      CachedDetails that = (CachedDetails)other;
+      return equal(this.name, that.name) && equal(this.number, that.number) &&
+             equal(this.lookupUri, that.lookupUri) && equal(this.contactUri, that.contactUri) &&
+             this.photoId == that.photoId;
+    }
+
+    @Override
+    public int hashCode() {
+      return (name == null ? 0 : name.hashCode()) ^ (lookupUri == null ? 0 : lookupUri.hashCode()) ^
+             (int)(photoId ^ (photoId >>> 32));
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A full text index of the names and numbers that conversations can be
+ * searched by, keyed by canonical recipient id. Contact entries are written
+ * whenever resolved recipient details change, group entries whenever a
+ * group's title does.
+ */
+public class SearchDatabase extends Database {
+
+  private static final String TABLE_NAME = "recipient_search";
+  private static final String DOC_ID     = "docid";
+  private static final String NAME       = "name";
+  private static final String NUMBER     = "number";
+
+  public static final String CREATE_TABLE = "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts3(" + NAME + ", " + NUMBER + ");";
+
+  static final String MATCH_RECIPIENT_IDS = "SELECT " + DOC_ID + " FROM " + TABLE_NAME + " WHERE " + TABLE_NAME + " MATCH ?";
+
+  public SearchDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public void setRecipient(long recipientId, String name, String number) {
+    setRecipient(databaseHelper.getWritableDatabase(), recipientId, name, number);
+  }
+
+  void setRecipient(SQLiteDatabase db, long recipientId, String name, String number) {
+    ContentValues values = new ContentValues(3);
+    values.put(DOC_ID, recipientId);
+    values.put(NAME, name);
+    values.put(NUMBER, number);
+
+    db.replace(TABLE_NAME, null, values);
+  }
+
+  /**
+   * Builds the number column for an address: the contact's formatted number
+   * if there is one, the address itself, and the address's national
+   * significant number, so that "5551234" still finds "+15551234567".
+   */
+  static String getSearchableNumber(String address, String formattedNumber) {
+    StringBuilder number = new StringBuilder();
+
+    if (formattedNumber != null) number.append(formattedNumber).append(' ');
+    number.append(address);
+
+    if (address.startsWith("+")) {
+      try {
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+        number.append(' ').append(util.getNationalSignificantNumber(util.parse(address, null)));
+      } catch (NumberParseException e) {
+        // Nothing more to index.
+      }
+    }
+
+    return number.toString();
+  }
+
+  /**
+   * @return the ids of thread recipients that have never been indexed.
+   */
+  public List<Long> getUnindexedRecipientIds() {
+    List<Long> results = new LinkedList<>();
+    Cursor     cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().rawQuery("SELECT DISTINCT " + ThreadDatabase.RECIPIENT_ID +
+                                                             " FROM " + ThreadDatabase.RECIPIENTS_TABLE_NAME +
+                                                             " WHERE " + ThreadDatabase.RECIPIENT_ID + " NOT IN" +
+                                                             " (SELECT " + DOC_ID + " FROM " + TABLE_NAME + ")",
+                                                             null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getLong(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Turns what the user typed into an FTS query that prefix matches every
+   * word, with query syntax characters removed.
+   *
+   * @return the query, or null if nothing searchable is left.
+   */
+  static String getMatchQuery(String filter) {
+    StringBuilder query = new StringBuilder();
+
+    for (String token : filter.split("\\s+")) {
+      String term = token.replaceAll("[\"*:^()\\-]", "");
+
+      if (term.length() == 0 || term.equalsIgnoreCase("AND") ||
+          term.equalsIgnoreCase("OR") || term.equalsIgnoreCase("NOT") || term.equalsIgnoreCase("NEAR"))
+      {
+        continue;
+      }
+
+      if (query.length() > 0) query.append(' ');
+      query.append(term).append('*');
+    }
+
+    return query.length() == 0 ? null : query.toString();
+  }
+}
@@ -28,6 +28,7 @@ import android.util.Log;
 import android.util.Pair;
 
 import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.DeliveryReceipt;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
@@ -42,6 +43,10 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
@@ -64,20 +69,25 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
   public  static final String REPLY_PATH_PRESENT = "reply_path_present";
   public  static final String SUBJECT            = "subject";
   public  static final String SERVICE_CENTER     = "service_center";
+          static final String CANONICAL_ADDRESS  = "canonical_address";
+
+  private static final int DELETE_BATCH_SIZE = 500;
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " integer PRIMARY KEY, "                +
     THREAD_ID + " INTEGER, " + ADDRESS + " TEXT, " + ADDRESS_DEVICE_ID + " INTEGER DEFAULT 1, " + PERSON + " INTEGER, " +
     DATE_RECEIVED  + " INTEGER, " + DATE_SENT + " INTEGER, " + PROTOCOL + " INTEGER, " + READ + " INTEGER DEFAULT 0, " +
     STATUS + " INTEGER DEFAULT -1," + TYPE + " INTEGER, " + REPLY_PATH_PRESENT + " INTEGER, " +
     RECEIPT_COUNT + " INTEGER DEFAULT 0," + SUBJECT + " TEXT, " + BODY + " TEXT, " +
-    SERVICE_CENTER + " TEXT);";
+    SERVICE_CENTER + " TEXT, " + CANONICAL_ADDRESS + " TEXT);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS sms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
-    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
+    "CREATE INDEX IF NOT EXISTS sms_date_sent_canonical_address_index ON " + TABLE_NAME + " (" + DATE_SENT + ", " + CANONICAL_ADDRESS + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -88,6 +98,9 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       REPLY_PATH_PRESENT, SUBJECT, BODY, SERVICE_CENTER, RECEIPT_COUNT
   };
 
+  private static final String UPDATE_TYPE_SQL   = "UPDATE " + TABLE_NAME + " SET " + TYPE + " = (" + TYPE + " & ? | ?) WHERE " + ID_WHERE;
+  private static final String UPDATE_STATUS_SQL = "UPDATE " + TABLE_NAME + " SET " + STATUS + " = ? WHERE " + ID_WHERE;
+
   private final JobManager jobManager;
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
@@ -98,10 +111,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
   private void updateTypeBitmask(long id, long maskOff, long maskOn) {
     Log.w("MessageDatabase", "Updating ID: " + id + " to base type: " + maskOn);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.execSQL("UPDATE " + TABLE_NAME +
-               " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
-               " WHERE " + ID + " = ?", new String[] {id+""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_TYPE_SQL, new Object[] {Types.TOTAL_MASK - maskOff, maskOn, id});
 
     long threadId = getThreadIdForMessage(id);
 
@@ -236,11 +246,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
   public void markStatus(long id, int status) {
     Log.w("MessageDatabase", "Updating ID: " + id + " to status: " + status);
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(STATUS, status);
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
+    databaseHelper.getWritableDatabase().execSQL(UPDATE_STATUS_SQL, new Object[] {status, id});
     notifyConversationListeners(getThreadIdForMessage(id));
   }
 
@@ -248,31 +254,29 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
+  /**
+   * Increments the receipt count of every outgoing message matching one of
+   * the receipts, whose addresses must already be canonical.
+   */
+  void incrementDeliveryReceiptCounts(List<DeliveryReceipt> receipts, Set<Long> threadIds) {
+    SQLiteDatabase     database   = databaseHelper.getWritableDatabase();
+    Map<Long, Integer> increments = new HashMap<>();
+    Cursor             cursor     = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(timestamp)},
-                              null, null, null, null);
-
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, address);
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              notifyConversationListeners(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
-            }
-          } catch (InvalidNumberException e) {
-            Log.w("SmsDatabase", e);
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, TYPE, DATE_SENT, CANONICAL_ADDRESS},
+                              DATE_SENT + " IN (" + getPlaceholders(receipts.size()) + ") AND " +
+                              CANONICAL_ADDRESS + " IN (" + getPlaceholders(receipts.size()) + ")",
+                              getReceiptArgs(receipts), null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (!Types.isOutgoingMessageType(cursor.getLong(2))) continue;
+
+        for (DeliveryReceipt receipt : receipts) {
+          if (receipt.getTimestamp() == cursor.getLong(3) && receipt.getAddress().equals(cursor.getString(4))) {
+            Integer count = increments.get(cursor.getLong(0));
+            increments.put(cursor.getLong(0), count == null ? 1 : count + 1);
+            threadIds.add(cursor.getLong(1));
           }
         }
       }
@@ -280,6 +284,31 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       if (cursor != null)
         cursor.close();
     }
+
+    for (Map.Entry<Long, Integer> increment : increments.entrySet()) {
+      database.execSQL("UPDATE " + TABLE_NAME + " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                       new Object[] {increment.getValue(), increment.getKey()});
+    }
+  }
+
+  private String getCanonicalAddress(String address) {
+    try {
+      return canonicalizeNumber(context, address);
+    } catch (InvalidNumberException e) {
+      Log.w("SmsDatabase", e);
+      return null;
+    }
+  }
+
+  private String[] getReceiptArgs(List<DeliveryReceipt> receipts) {
+    String[] args = new String[receipts.size() * 2];
+
+    for (int i=0;i<receipts.size();i++) {
+      args[i]                   = String.valueOf(receipts.get(i).getTimestamp());
+      args[receipts.size() + i] = receipts.get(i).getAddress();
+    }
+
+    return args;
   }
 
   public void setMessagesRead(long threadId) {
@@ -329,11 +358,10 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     contentValues.put(BODY, record.getBody().getBody());
     contentValues.put(THREAD_ID, record.getThreadId());
 
-    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
+    long newMessageId = insertAndUpdateThread(record.getThreadId(), contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId());
     notifyConversationListeners(record.getThreadId());
+    notifyConversationListListeners();
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
     reader.close();
@@ -414,15 +442,14 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     values.put(TYPE, type);
     values.put(THREAD_ID, threadId);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    long messageId = insertAndUpdateThread(threadId, values);
 
     if (unread) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
+    notifyConversationListListeners();
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return new Pair<>(messageId, threadId);
@@ -444,6 +471,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
     ContentValues contentValues = new ContentValues(6);
     contentValues.put(ADDRESS, PhoneNumberUtils.formatNumber(message.getRecipients().getPrimaryRecipient().getNumber()));
+    contentValues.put(CANONICAL_ADDRESS, getCanonicalAddress(message.getRecipients().getPrimaryRecipient().getNumber()));
     contentValues.put(THREAD_ID, threadId);
     contentValues.put(BODY, message.getMessageBody());
     contentValues.put(DATE_RECEIVED, date);
@@ -451,19 +479,60 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     contentValues.put(READ, 1);
     contentValues.put(TYPE, type);
 
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    long messageId = insertAndUpdateThread(threadId, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
+    notifyConversationListListeners();
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  private long insertAndUpdateThread(long threadId, ContentValues values) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      long messageId = db.insert(TABLE_NAME, ADDRESS, values);
+
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, values.getAsString(BODY),
+                                                                 values.getAsLong(DATE_SENT),
+                                                                 values.getAsLong(DATE_RECEIVED),
+                                                                 values.getAsLong(TYPE));
+      db.setTransactionSuccessful();
+      return messageId;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return up to limit message ids greater than lastId, in order.
+   */
+  List<Long> getMessageIdsAfter(long lastId, int limit) {
+    List<Long> ids    = new ArrayList<>(limit);
+    Cursor     cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, ID + " > ?",
+                                                          new String[] {String.valueOf(lastId)},
+                                                          null, null, ID, String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+
+      return ids;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  Cursor getMessagesBetween(long firstId, long lastId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " >= ? AND " + ID + " <= ?",
+                    new String[] {String.valueOf(firstId), String.valueOf(lastId)}, null, null, ID);
   }
 
   Cursor getOutgoingMessages() {
@@ -494,21 +563,39 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
   public void deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
-    notifyConversationListeners(threadId);
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+
+    db.beginTransactionWithListener(changeNotifier);
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_SENT, DATE_RECEIVED, TYPE},
+                        ID_WHERE, new String[] {messageId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      long threadId = cursor.getLong(0);
+
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, cursor.getLong(1),
+                                                                 cursor.getLong(2), cursor.getLong(3));
+      db.setTransactionSuccessful();
+
+      notifyConversationListeners(threadId);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      db.endTransaction();
+    }
   }
 
   /*package */void deleteThread(long threadId) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    deleteInBatches(THREAD_ID + " = ?", new String[] {threadId+""});
   }
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = THREAD_ID + " = ? AND (CASE " + TYPE;
+    String where = THREAD_ID + " = ? AND (CASE " + TYPE;
 
     for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
       where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
@@ -516,20 +603,17 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
     where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
-    db.delete(TABLE_NAME, where, new String[] {threadId+""});
+    deleteInBatches(where, new String[] {threadId+""});
   }
 
-  /*package*/ void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = "";
-
-    for (long threadId : threadIds) {
-      where += THREAD_ID + " = '" + threadId + "' OR ";
-    }
-
-    where = where.substring(0, where.length() - 4);
+  private void deleteInBatches(String where, String[] args) {
+    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
+    String         batch = ID + " IN (SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where + " LIMIT " + DELETE_BATCH_SIZE + ")";
+    int            deleted;
 
-    db.delete(TABLE_NAME, where, null);
+    do {
+      deleted = db.delete(TABLE_NAME, batch, args);
+    } while (deleted == DELETE_BATCH_SIZE);
   }
 
   /*package */ void deleteAllThreads() {
@@ -539,7 +623,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
 
   /*package*/ SQLiteDatabase beginTransaction() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    database.beginTransactionWithListener(changeNotifier);
     return database;
   }
 
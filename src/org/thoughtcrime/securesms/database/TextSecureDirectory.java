@@ -9,15 +9,18 @@ import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TextSecureDirectory {
 
@@ -55,122 +58,214 @@ public class TextSecureDirectory {
     return instance;
   }
 
-  private final DatabaseHelper databaseHelper;
   private final Context        context;
+  private final Object         lock = new Object();
+
+  private volatile DatabaseHelper databaseHelper;
+
+  private volatile Map<String, DirectoryEntry> cache;
 
   private TextSecureDirectory(Context context) {
     this.context = context;
-    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, QueryProfiler.getInstance(), DATABASE_VERSION);
   }
 
-  public boolean isSmsFallbackSupported(String e164number) {
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
+  /**
+   * Reopens the database after it was replaced, such as by a backup import,
+   * and drops everything cached from the old one.
+   */
+  public void reset(Context context) {
+    setDatabase(context, DATABASE_NAME);
+  }
 
-    try {
-      cursor = db.query(TABLE_NAME, new String[] {SUPPORTS_SMS}, NUMBER + " = ?",
-                        new String[]{e164number}, null, null, null);
+  /**
+   * Points the directory at the named database file, so that tests can
+   * write to a throwaway copy.
+   */
+  @VisibleForTesting void setDatabase(Context context, String databaseName) {
+    synchronized (lock) {
+      DatabaseHelper old  = this.databaseHelper;
+      this.databaseHelper = new DatabaseHelper(context, databaseName, QueryProfiler.getInstance(), DATABASE_VERSION);
+      this.cache          = null;
+
+      old.close();
+    }
+  }
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        return false;
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+  public void checkpoint() {
+    synchronized (lock) {
+      JournalMode.checkpoint(databaseHelper.getWritableDatabase());
     }
   }
 
+  public boolean isSmsFallbackSupported(String e164number) {
+    DirectoryEntry entry = getCache().get(e164number);
+    return entry != null && entry.supportsSms;
+  }
+
   public boolean isActiveNumber(String e164number) throws NotInDirectoryException {
     if (e164number == null || e164number.length() == 0) {
       return false;
     }
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
+    DirectoryEntry entry = getCache().get(e164number);
 
-    try {
-      cursor = db.query(TABLE_NAME,
-          new String[]{REGISTERED}, NUMBER + " = ?",
-          new String[] {e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
+    if (entry == null) throw new NotInDirectoryException();
+    else               return entry.registered;
+  }
+
+  public String getRelay(String e164number) {
+    DirectoryEntry entry = getCache().get(e164number);
+    return entry != null ? entry.relay : null;
+  }
+
+  public void setNumber(ContactTokenDetails token, boolean active) {
+    long          timestamp = System.currentTimeMillis();
+    ContentValues values    = new ContentValues();
+    values.put(NUMBER, token.getNumber());
+    values.put(RELAY, token.getRelay());
+    values.put(REGISTERED, active ? 1 : 0);
+    values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
+    values.put(TIMESTAMP, timestamp);
+
+    synchronized (lock) {
+      databaseHelper.getWritableDatabase().replace(TABLE_NAME, null, values);
+
+      if (cache != null) {
+        cache.put(token.getNumber(), new DirectoryEntry(active, token.getRelay(), token.isSupportsSms(), timestamp));
       }
+    }
+  }
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+  public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
+    long                        timestamp = System.currentTimeMillis();
+    Map<String, DirectoryEntry> updates   = new HashMap<>();
+
+    synchronized (lock) {
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
+      db.beginTransaction();
+
+      try {
+        for (ContactTokenDetails token : activeTokens) {
+          Log.w("Directory", "Adding active token: " + token);
+          ContentValues values = new ContentValues();
+          values.put(NUMBER, token.getNumber());
+          values.put(REGISTERED, 1);
+          values.put(TIMESTAMP, timestamp);
+          values.put(RELAY, token.getRelay());
+          values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
+          db.replace(TABLE_NAME, null, values);
+
+          updates.put(token.getNumber(), new DirectoryEntry(true, token.getRelay(), token.isSupportsSms(), timestamp));
+        }
+
+        for (String token : inactiveTokens) {
+          ContentValues values = new ContentValues();
+          values.put(NUMBER, token);
+          values.put(REGISTERED, 0);
+          values.put(TIMESTAMP, timestamp);
+          db.replace(TABLE_NAME, null, values);
+
+          updates.put(token, new DirectoryEntry(false, null, false, timestamp));
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
+      if (cache != null) {
+        cache.putAll(updates);
+      }
     }
   }
 
-  public String getRelay(String e164number) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
+  /**
+   * @return the numbers that have never been looked up, or whose last
+   * lookup happened before staleBefore.
+   */
+  public Set<String> getNumbersNeedingRefresh(Collection<String> e164numbers, long staleBefore) {
+    Map<String, DirectoryEntry> entries = getCache();
+    Set<String>                 results = new HashSet<>();
+
+    for (String number : e164numbers) {
+      DirectoryEntry entry = entries.get(number);
+
+      if (entry == null || entry.timestamp < staleBefore) {
+        results.add(number);
+      }
+    }
+
+    return results;
+  }
+
+  private Map<String, DirectoryEntry> getCache() {
+    Map<String, DirectoryEntry> loaded = cache;
+
+    if (loaded == null) {
+      synchronized (lock) {
+        if (cache == null) {
+          cache = loadCache();
+        }
+
+        loaded = cache;
+      }
+    }
+
+    return loaded;
+  }
+
+  private Map<String, DirectoryEntry> loadCache() {
+    Map<String, DirectoryEntry> results = new ConcurrentHashMap<>();
+    Cursor                      cursor  = null;
 
     try {
-      cursor = database.query(TABLE_NAME, null, NUMBER + " = ?", new String[]{e164number}, null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {NUMBER, REGISTERED, RELAY, SUPPORTS_SMS, TIMESTAMP},
+                                                          null, null, null, null, null);
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getString(cursor.getColumnIndexOrThrow(RELAY));
+      while (cursor != null && cursor.moveToNext()) {
+        results.put(cursor.getString(0), new DirectoryEntry(cursor.getInt(1) == 1,
+                                                            cursor.getString(2),
+                                                            cursor.getInt(3) == 1,
+                                                            cursor.getLong(4)));
       }
 
-      return null;
+      Log.w("Directory", "Loaded " + results.size() + " directory entries");
+      return results;
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
-  public void setNumber(ContactTokenDetails token, boolean active) {
-    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
-    ContentValues  values = new ContentValues();
-    values.put(NUMBER, token.getNumber());
-    values.put(RELAY, token.getRelay());
-    values.put(REGISTERED, active ? 1 : 0);
-    values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-    values.put(TIMESTAMP, System.currentTimeMillis());
-    db.replace(TABLE_NAME, null, values);
-  }
+  @VisibleForTesting boolean isActiveNumberUncached(String e164number) throws NotInDirectoryException {
+    synchronized (lock) {
+      SQLiteDatabase db = databaseHelper.getReadableDatabase();
+      Cursor cursor = null;
 
-  public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
-    long timestamp    = System.currentTimeMillis();
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.beginTransaction();
+      try {
+        cursor = db.query(TABLE_NAME,
+            new String[]{REGISTERED}, NUMBER + " = ?",
+            new String[] {e164number}, null, null, null);
 
-    try {
-      for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token);
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token.getNumber());
-        values.put(REGISTERED, 1);
-        values.put(TIMESTAMP, timestamp);
-        values.put(RELAY, token.getRelay());
-        values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-        db.replace(TABLE_NAME, null, values);
-      }
+        if (cursor != null && cursor.moveToFirst()) {
+          return cursor.getInt(0) == 1;
+        } else {
+          throw new NotInDirectoryException();
+        }
 
-      for (String token : inactiveTokens) {
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token);
-        values.put(REGISTERED, 0);
-        values.put(TIMESTAMP, timestamp);
-        db.replace(TABLE_NAME, null, values);
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
   }
 
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
-    final Uri         uri     = Phone.CONTENT_URI;
-    final Set<String> results = new HashSet<String>();
-          Cursor      cursor  = null;
+    final Uri         uri        = Phone.CONTENT_URI;
+    final Set<String> results    = new HashSet<String>();
+    final Set<String> rawNumbers = new HashSet<String>();
+          Cursor      cursor     = null;
 
     try {
       cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER}, null, null, null);
@@ -178,49 +273,72 @@ public class TextSecureDirectory {
       while (cursor != null && cursor.moveToNext()) {
         final String rawNumber = cursor.getString(0);
         if (rawNumber != null) {
-          try {
-            final String e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
-            results.add(e164Number);
-          } catch (InvalidNumberException e) {
-            Log.w("Directory", "Invalid number: " + rawNumber);
-          }
+          rawNumbers.add(rawNumber);
         }
       }
 
+      results.addAll(PhoneNumberFormatter.formatNumbers(rawNumbers, localNumber).values());
+      Log.w("Directory", PhoneNumberFormatter.getCacheStats());
+    } finally {
       if (cursor != null)
         cursor.close();
+    }
 
-      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
-      if (readableDb != null) {
-        cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
+    results.addAll(getAllNumbers());
+    return results;
+  }
+
+  private List<String> getAllNumbers() {
+    final List<String> results = new ArrayList<String>();
+
+    synchronized (lock) {
+      Cursor cursor = null;
+      try {
+        cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[]{NUMBER},
             null, null, null, null, null);
 
         while (cursor != null && cursor.moveToNext()) {
           results.add(cursor.getString(0));
         }
+        return results;
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-
-      return results;
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
   }
 
   public List<String> getActiveNumbers() {
     final List<String> results = new ArrayList<String>();
-    Cursor cursor = null;
-    try {
-      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[]{NUMBER},
-          REGISTERED + " = 1", null, null, null, null);
 
-      while (cursor != null && cursor.moveToNext()) {
-        results.add(cursor.getString(0));
+    synchronized (lock) {
+      Cursor cursor = null;
+      try {
+        cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[]{NUMBER},
+            REGISTERED + " = 1", null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          results.add(cursor.getString(0));
+        }
+        return results;
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-      return results;
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    }
+  }
+
+  private static class DirectoryEntry {
+    private final boolean registered;
+    private final String  relay;
+    private final boolean supportsSms;
+    private final long    timestamp;
+
+    private DirectoryEntry(boolean registered, String relay, boolean supportsSms, long timestamp) {
+      this.registered  = registered;
+      this.relay       = relay;
+      this.supportsSms = supportsSms;
+      this.timestamp   = timestamp;
     }
   }
 
@@ -231,6 +349,7 @@ public class TextSecureDirectory {
                           int version)
     {
       super(context, name, factory, version);
+      JournalMode.configure(context, this);
     }
 
     @Override
@@ -238,6 +357,11 @@ public class TextSecureDirectory {
       db.execSQL(CREATE_TABLE);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      JournalMode.onOpen(db);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       if (oldVersion < INTRODUCED_CHANGE_FROM_TOKEN_TO_E164_NUMBER) {
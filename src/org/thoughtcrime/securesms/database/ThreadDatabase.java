@@ -24,20 +24,23 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.jobs.ThreadDeletionJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class ThreadDatabase extends Database {
 
@@ -53,15 +56,27 @@ public class ThreadDatabase extends Database {
   private static final String ERROR           = "error";
   private static final String HAS_ATTACHMENT  = "has_attachment";
   public  static final String SNIPPET_TYPE    = "snippet_type";
+  private static final String RECIPIENT_HASH  = "recipient_hash";
+  private static final String DELETED         = "deleted";
+
+          static final String RECIPIENTS_TABLE_NAME = "thread_recipients";
+  private static final String THREAD_ID             = "thread_id";
+          static final String RECIPIENT_ID          = "recipient_id";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, "                             +
     DATE + " INTEGER DEFAULT 0, " + MESSAGE_COUNT + " INTEGER DEFAULT 0, "                         +
     RECIPIENT_IDS + " TEXT, " + SNIPPET + " TEXT, " + SNIPPET_CHARSET + " INTEGER DEFAULT 0, "     +
     READ + " INTEGER DEFAULT 1, " + TYPE + " INTEGER DEFAULT 0, " + ERROR + " INTEGER DEFAULT 0, " +
-    SNIPPET_TYPE + " INTEGER DEFAULT 0);";
+    SNIPPET_TYPE + " INTEGER DEFAULT 0, " + RECIPIENT_HASH + " INTEGER DEFAULT 0, " + DELETED + " INTEGER DEFAULT 0);";
+
+  public static final String CREATE_RECIPIENTS_TABLE = "CREATE TABLE " + RECIPIENTS_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+    THREAD_ID + " INTEGER, " + RECIPIENT_ID + " INTEGER);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
+    "CREATE INDEX IF NOT EXISTS thread_recipient_hash_index ON " + TABLE_NAME + " (" + RECIPIENT_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS thread_recipients_thread_index ON " + RECIPIENTS_TABLE_NAME + " (" + THREAD_ID + ");",
+    "CREATE INDEX IF NOT EXISTS thread_recipients_recipient_index ON " + RECIPIENTS_TABLE_NAME + " (" + RECIPIENT_ID + ", " + THREAD_ID + ");",
   };
 
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
@@ -69,7 +84,7 @@ public class ThreadDatabase extends Database {
   }
 
   private long[] getRecipientIds(Recipients recipients) {
-    Set<Long>       recipientSet  = new HashSet<Long>();
+    Set<Long>       recipientSet  = new TreeSet<Long>();
     List<Recipient> recipientList = recipients.getRecipientsList();
 
     for (Recipient recipient : recipientList) {
@@ -83,11 +98,23 @@ public class ThreadDatabase extends Database {
       recipientArray[i++] = recipientId;
     }
 
-    Arrays.sort(recipientArray);
-
     return recipientArray;
   }
 
+  /**
+   * A key for a sorted set of recipient ids. Lookups match on this first and
+   * then confirm against the recipient_ids string, so collisions are harmless.
+   */
+  static long getRecipientHash(long[] recipientIds) {
+    long hash = 1125899906842597L;
+
+    for (long recipientId : recipientIds) {
+      hash = 31 * hash + recipientId;
+    }
+
+    return hash;
+  }
+
   private String getRecipientsAsString(long[] recipientIds) {
     StringBuilder sb = new StringBuilder();
     for (int i=0;i<recipientIds.length;i++) {
@@ -98,20 +125,61 @@ public class ThreadDatabase extends Database {
     return sb.toString();
   }
 
-  private long createThreadForRecipients(String recipients, int recipientCount, int distributionType) {
-    ContentValues contentValues = new ContentValues(4);
+  private long createThreadForRecipients(long[] recipientIds, String recipients, int distributionType) {
+    ContentValues contentValues = new ContentValues(5);
     long date                   = System.currentTimeMillis();
 
     contentValues.put(DATE, date - date % 1000);
     contentValues.put(RECIPIENT_IDS, recipients);
+    contentValues.put(RECIPIENT_HASH, getRecipientHash(recipientIds));
 
-    if (recipientCount > 1)
+    if (recipientIds.length > 1)
       contentValues.put(TYPE, distributionType);
 
     contentValues.put(MESSAGE_COUNT, 0);
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    return db.insert(TABLE_NAME, null, contentValues);
+    db.beginTransaction();
+
+    try {
+      long threadId = db.insert(TABLE_NAME, null, contentValues);
+
+      for (long recipientId : recipientIds) {
+        ContentValues values = new ContentValues(2);
+        values.put(THREAD_ID, threadId);
+        values.put(RECIPIENT_ID, recipientId);
+        db.insert(RECIPIENTS_TABLE_NAME, null, values);
+      }
+
+      db.setTransactionSuccessful();
+      return threadId;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Threads whose recipient_ids couldn't be parsed when the hash was
+   * introduced were left with a zero hash, and are matched on the string alone.
+   */
+  private long findThreadId(long[] recipientIds, String recipientsList) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    String         where  = "(" + RECIPIENT_HASH + " = ? OR " + RECIPIENT_HASH + " = 0) AND " +
+                            RECIPIENT_IDS + " = ? AND " + DELETED + " = 0";
+    String[]       args   = new String[] {String.valueOf(getRecipientHash(recipientIds)), recipientsList};
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[]{ID}, where, args, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+      else
+        return -1L;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
   private void updateThread(long threadId, long count, String body, long date, long type)
@@ -139,77 +207,58 @@ public class ThreadDatabase extends Database {
   private void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId+""});
-    notifyConversationListListeners();
-  }
-
-  private void deleteThreads(Set<Long> threadIds) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = "";
-
-    for (long threadId : threadIds) {
-      where += ID + " = '" + threadId + "' OR ";
-    }
-
-    where = where.substring(0, where.length() - 4);
-
-    db.delete(TABLE_NAME, where, null);
+    db.delete(RECIPIENTS_TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
     notifyConversationListListeners();
   }
 
   private void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    db.delete(RECIPIENTS_TABLE_NAME, null, null);
     notifyConversationListListeners();
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    List<Long> threadIds = new LinkedList<>();
+    Cursor     cursor    = null;
+    int        complete  = 0;
 
     try {
-      cursor = this.getConversationList();
-
-      if (cursor != null)
-        threadCount = cursor.getCount();
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, MESSAGE_COUNT + " > ? AND " + DELETED + " = 0",
+                                                          new String[] {String.valueOf(length)}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
-
-        listener.onProgress(++complete, threadCount);
+        threadIds.add(cursor.getLong(0));
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    for (long threadId : threadIds) {
+      trimThread(threadId, length);
+      listener.onProgress(++complete, threadIds.size());
+    }
   }
 
   public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (length <= 0 || mmsSmsDatabase.getConversationCount(threadId) <= length) return;
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    long cutoff = mmsSmsDatabase.getTrimCutoff(threadId, length);
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    if (cutoff == -1) return;
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+    Log.w("ThreadDatabase", "Cut off tweet date: " + cutoff);
 
-        update(threadId);
-        notifyConversationListeners(threadId);
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoff);
+    DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoff);
+
+    update(threadId);
+    notifyConversationListeners(threadId);
   }
 
   public void setAllThreadsRead() {
@@ -254,111 +303,147 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
-  public Cursor getFilteredConversationList(List<String> filter) {
-    if (filter == null || filter.size() == 0)
+  public Cursor getFilteredConversationList(String filter) {
+    if (filter == null)
       return null;
 
-    List<Long> recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddressIds(filter);
+    String query = SearchDatabase.getMatchQuery(filter);
 
-    if (recipientIds == null || recipientIds.size() == 0)
+    if (query == null)
       return null;
 
-    String selection       = RECIPIENT_IDS + " = ?";
-    String[] selectionArgs = new String[recipientIds.size()];
-
-    for (int i=0;i<recipientIds.size()-1;i++)
-      selection += (" OR " + RECIPIENT_IDS + " = ?");
-
-    int i= 0;
-    for (long id : recipientIds) {
-      selectionArgs[i++] = id+"";
-    }
+    String selection = ID + " IN (SELECT " + THREAD_ID + " FROM " + RECIPIENTS_TABLE_NAME +
+                       " WHERE " + RECIPIENT_ID + " IN (" + SearchDatabase.MATCH_RECIPIENT_IDS + "))";
 
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor     = db.query(TABLE_NAME, null, selection, selectionArgs, null, null, DATE + " DESC");
+    Cursor cursor     = db.query(TABLE_NAME, null, selection, new String[] {query}, null, null, DATE + " DESC, " + ID + " DESC");
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
 
   public Cursor getConversationList() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor     =  db.query(TABLE_NAME, null, null, null, null, null, DATE + " DESC");
+    Cursor cursor     =  db.query(TABLE_NAME, null, DELETED + " = 0", null, null, null, DATE + " DESC");
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
 
   public void deleteConversation(long threadId) {
-    DatabaseFactory.getSmsDatabase(context).deleteThread(threadId);
-    DatabaseFactory.getMmsDatabase(context).deleteThread(threadId);
-    DatabaseFactory.getDraftDatabase(context).clearDrafts(threadId);
-    deleteThread(threadId);
-    notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    deleteConversations(Collections.singleton(threadId));
   }
 
-
+  /**
+   * Hides the conversations immediately and leaves removing their messages
+   * and attachments to {@link ThreadDeletionJob}, which picks up any
+   * conversations still marked deleted after a restart.
+   */
   public void deleteConversations(Set<Long> selectedConversations) {
-    DatabaseFactory.getSmsDatabase(context).deleteThreads(selectedConversations);
-    DatabaseFactory.getMmsDatabase(context).deleteThreads(selectedConversations);
-    DatabaseFactory.getDraftDatabase(context).clearDrafts(selectedConversations);
-    deleteThreads(selectedConversations);
+    SQLiteDatabase db  = databaseHelper.getWritableDatabase();
+    List<Long>     ids = new LinkedList<>(selectedConversations);
+    String         in  = " IN (" + getPlaceholders(ids.size()) + ")";
+
+    ContentValues values = new ContentValues(1);
+    values.put(DELETED, 1);
+
+    db.beginTransactionWithListener(changeNotifier);
+
+    try {
+      db.update(TABLE_NAME, values, ID + in, getIdArgs(ids));
+      db.delete(RECIPIENTS_TABLE_NAME, THREAD_ID + in, getIdArgs(ids));
+
+      for (long threadId : ids) {
+        DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
+        DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
+      }
+
+      DatabaseFactory.getDraftDatabase(context).clearDrafts(selectedConversations);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
     notifyConversationListeners(selectedConversations);
     notifyConversationListListeners();
-  }
 
-  public void deleteAllConversations() {
-    DatabaseFactory.getSmsDatabase(context).deleteAllThreads();
-    DatabaseFactory.getMmsDatabase(context).deleteAllThreads();
-    DatabaseFactory.getDraftDatabase(context).clearAllDrafts();
-    deleteAllThreads();
+    ApplicationContext.getInstance(context).getJobManager().add(new ThreadDeletionJob(context));
   }
 
-  public long getThreadIdIfExistsFor(Recipients recipients) {
-    long[] recipientIds    = getRecipientIds(recipients);
-    String recipientsList  = getRecipientsAsString(recipientIds);
-    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
-    String where           = RECIPIENT_IDS + " = ?";
-    String[] recipientsArg = new String[] {recipientsList};
-    Cursor cursor          = null;
+  public List<Long> getDeletedThreadIds() {
+    List<Long> threadIds = new LinkedList<>();
+    Cursor     cursor    = null;
 
     try {
-      cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, DELETED + " = 1",
+                                                          null, null, null, null);
 
-      if (cursor != null && cursor.moveToFirst())
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-      else
-        return -1L;
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+
+      return threadIds;
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
-  public long getThreadIdFor(Recipients recipients) {
-    return getThreadIdFor(recipients, DistributionTypes.DEFAULT);
-  }
-
-  public long getThreadIdFor(Recipients recipients, int distributionType) {
-    long[] recipientIds    = getRecipientIds(recipients);
-    String recipientsList  = getRecipientsAsString(recipientIds);
-    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
-    String where           = RECIPIENT_IDS + " = ?";
-    String[] recipientsArg = new String[] {recipientsList};
-    Cursor cursor          = null;
+  public boolean isDeleted(long threadId) {
+    Cursor cursor = null;
 
     try {
-      cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {DELETED}, ID_WHERE,
+                                                          new String[] {threadId+""}, null, null, null);
 
-      if (cursor != null && cursor.moveToFirst())
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-      else
-        return createThreadForRecipients(recipientsList, recipientIds.length, distributionType);
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == 1;
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
+  /**
+   * Removes every message of a conversation marked deleted in bounded batches,
+   * then the conversation itself. Nothing written to a deleted conversation is
+   * kept, which is why {@link org.thoughtcrime.securesms.sms.MessageSender}
+   * sends to a new thread for the same recipients instead. The row is only
+   * dropped once no messages are left, so a message inserted while this ran
+   * is removed on the next pass.
+   */
+  public void purgeDeletedThread(long threadId) {
+    DatabaseFactory.getSmsDatabase(context).deleteThread(threadId);
+    DatabaseFactory.getMmsDatabase(context).deleteThread(threadId);
+
+    if (DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId) == 0) {
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
+      db.delete(TABLE_NAME, ID + " = ? AND " + DELETED + " = 1", new String[] {threadId+""});
+    }
+  }
+
+  public void deleteAllConversations() {
+    DatabaseFactory.getSmsDatabase(context).deleteAllThreads();
+    DatabaseFactory.getMmsDatabase(context).deleteAllThreads();
+    DatabaseFactory.getDraftDatabase(context).clearAllDrafts();
+    deleteAllThreads();
+  }
+
+  public long getThreadIdIfExistsFor(Recipients recipients) {
+    long[] recipientIds = getRecipientIds(recipients);
+    return findThreadId(recipientIds, getRecipientsAsString(recipientIds));
+  }
+
+  public long getThreadIdFor(Recipients recipients) {
+    return getThreadIdFor(recipients, DistributionTypes.DEFAULT);
+  }
+
+  public long getThreadIdFor(Recipients recipients, int distributionType) {
+    long[] recipientIds   = getRecipientIds(recipients);
+    String recipientsList = getRecipientsAsString(recipientIds);
+    long   threadId       = findThreadId(recipientIds, recipientsList);
+
+    if (threadId != -1) return threadId;
+    else                return createThreadForRecipients(recipientIds, recipientsList, distributionType);
+  }
+
   public Recipients getRecipientsForThreadId(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -412,6 +497,59 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Accounts for a message that was just inserted as the newest in its
+   * thread, without recounting the thread or reading the message back.
+   * Callers run this in the same transaction as the insert.
+   */
+  public void updateForInsert(long threadId, String body, long dateSent, long dateReceived, long type) {
+    long timestamp = getSnippetTimestamp(dateSent, dateReceived, type);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1, " +
+               DATE + " = ?, " + SNIPPET + " = ?, " + SNIPPET_TYPE + " = ? WHERE " + ID + " = ?",
+               new Object[] {timestamp, body, type, threadId});
+  }
+
+  /**
+   * Accounts for a message that was just deleted. The thread is only
+   * recomputed when the deleted message may have been its snippet.
+   */
+  public void updateForDelete(long threadId, long dateSent, long dateReceived, long type) {
+    long           timestamp = getSnippetTimestamp(dateSent, dateReceived, type);
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    Cursor         cursor    = null;
+    long           date;
+    long           count;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {DATE, MESSAGE_COUNT}, ID_WHERE,
+                        new String[] {threadId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      date  = cursor.getLong(0);
+      count = cursor.getLong(1);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (count <= 1 || date == timestamp) {
+      update(threadId);
+      return;
+    }
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = ?",
+               new Object[] {threadId});
+    notifyConversationListListeners();
+  }
+
+  private long getSnippetTimestamp(long dateSent, long dateReceived, long type) {
+    long timestamp = MmsSmsColumns.Types.isPushType(type) ? dateSent : dateReceived;
+    return timestamp - timestamp % 1000;
+  }
+
   public static interface ProgressListener {
     public void onProgress(int complete, int total);
   }
@@ -6,13 +6,18 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class XmlBackup {
 
@@ -29,12 +34,20 @@ public class XmlBackup {
   private static final String SC_TOA         = "sc_toa";
   private static final String LOCKED         = "locked";
 
+  static final String COMPRESSED_SUFFIX = ".gz";
+
   private final XmlPullParser parser;
 
-  public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
+  public XmlBackup(String path) throws XmlPullParserException, IOException {
+    InputStream in = new FileInputStream(path);
+
+    if (path.endsWith(COMPRESSED_SUFFIX)) {
+      in = new GZIPInputStream(in);
+    }
+
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-    parser.setInput(new FileInputStream(path), null);
+    parser.setInput(in, null);
   }
 
   public XmlBackupItem getNext() throws IOException, XmlPullParserException {
@@ -154,10 +167,25 @@ public class XmlBackup {
 
     private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
 
+    private static final int     BUFFER_SIZE     = 64 * 1024;
+
     private final BufferedWriter bufferedWriter;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      this(path, count, false);
+    }
+
+    /**
+     * @param compress gzip the output, in which case the path should end in {@link #COMPRESSED_SUFFIX}.
+     */
+    public Writer(String path, int count, boolean compress) throws IOException {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(path, false), BUFFER_SIZE);
+
+      if (compress) {
+        out = new GZIPOutputStream(out, BUFFER_SIZE);
+      }
+
+      bufferedWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
 
       bufferedWriter.write(XML_HEADER);
       bufferedWriter.newLine();
@@ -167,29 +195,28 @@ public class XmlBackup {
     }
 
     public void writeItem(XmlBackupItem item) throws IOException {
-      StringBuilder stringBuilder = new StringBuilder();
-
-      stringBuilder.append(OPEN_TAG_SMS);
-      appendAttribute(stringBuilder, PROTOCOL, item.getProtocol());
-      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
-      appendAttribute(stringBuilder, DATE, item.getDate());
-      appendAttribute(stringBuilder, TYPE, item.getType());
-      appendAttribute(stringBuilder, SUBJECT, escapeXML(item.getSubject()));
-      appendAttribute(stringBuilder, BODY, escapeXML(item.getBody()));
-      appendAttribute(stringBuilder, TOA, "null");
-      appendAttribute(stringBuilder, SC_TOA, "null");
-      appendAttribute(stringBuilder, SERVICE_CENTER, item.getServiceCenter());
-      appendAttribute(stringBuilder, READ, item.getRead());
-      appendAttribute(stringBuilder, STATUS, item.getStatus());
-      appendAttribute(stringBuilder, LOCKED, 0);
-      stringBuilder.append(CLOSE_EMPTYTAG);
-
       bufferedWriter.newLine();
-      bufferedWriter.write(stringBuilder.toString());
-    }
-
-    private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
-      stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
+      bufferedWriter.write(OPEN_TAG_SMS);
+      writeAttribute(PROTOCOL, item.getProtocol());
+      writeAttribute(ADDRESS, escapeXML(item.getAddress()));
+      writeAttribute(DATE, item.getDate());
+      writeAttribute(TYPE, item.getType());
+      writeAttribute(SUBJECT, escapeXML(item.getSubject()));
+      writeAttribute(BODY, escapeXML(item.getBody()));
+      writeAttribute(TOA, "null");
+      writeAttribute(SC_TOA, "null");
+      writeAttribute(SERVICE_CENTER, item.getServiceCenter());
+      writeAttribute(READ, item.getRead());
+      writeAttribute(STATUS, item.getStatus());
+      writeAttribute(LOCKED, 0);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
+
+    private <T> void writeAttribute(String name, T value) throws IOException {
+      bufferedWriter.write(name);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      bufferedWriter.write(String.valueOf(value));
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
     }
 
     public void close() throws IOException {
@@ -3,12 +3,9 @@ package org.thoughtcrime.securesms.database.loaders;
 import android.content.Context;
 import android.database.Cursor;
 
-import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
-import java.util.List;
-
 public class ConversationListLoader extends AbstractCursorLoader {
 
   private final String filter;
@@ -21,9 +18,7 @@ public class ConversationListLoader extends AbstractCursorLoader {
   @Override
   public Cursor getCursor() {
     if (filter != null && filter.trim().length() != 0) {
-      List<String> numbers = ContactAccessor.getInstance().getNumbersForThreadSearchFilter(context, filter);
-
-      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(filter);
     } else {
       return DatabaseFactory.getThreadDatabase(context).getConversationList();
     }
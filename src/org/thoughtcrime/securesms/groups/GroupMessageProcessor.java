@@ -25,7 +25,6 @@ import org.whispersystems.textsecure.api.messages.TextSecureMessage;
 
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
 
 import static org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
@@ -144,12 +143,11 @@ public class GroupMessageProcessor {
   {
     GroupDatabase database = DatabaseFactory.getGroupDatabase(context);
     byte[]        id       = group.getGroupId();
-    List<String>  members  = record.getMembers();
 
     GroupContext.Builder builder = createGroupContext(group);
     builder.setType(GroupContext.Type.QUIT);
 
-    if (members.contains(envelope.getSource())) {
+    if (database.isMember(id, envelope.getSource())) {
       database.remove(id, envelope.getSource());
 
       storeMessage(context, masterSecret, envelope, group, builder.build());
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.PartDatabase;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes files in the parts directory that no part row points at, such as
+ * those left behind by a crash between writing part data and inserting its row.
+ */
+public class PartCleanupJob extends ContextJob {
+
+  private static final String TAG = PartCleanupJob.class.getSimpleName();
+
+  private static final long CLEANUP_INTERVAL = TimeUnit.DAYS.toMillis(1);
+  private static final long MINIMUM_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+  private static final int  ROW_BATCH_SIZE   = 500;
+  private static final int  FILE_BATCH_SIZE  = 50;
+  private static final int  MINIMUM_FILES    = 20;
+  private static final int  MAXIMUM_PERCENT  = 50;
+
+  public PartCleanupJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(PartCleanupJob.class.getSimpleName())
+                                .create());
+  }
+
+  public static boolean isCleanupDue(Context context) {
+    return System.currentTimeMillis() - TextSecurePreferences.getPartCleanupTime(context) > CLEANUP_INTERVAL;
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun() {
+    PartDatabase database   = DatabaseFactory.getPartDatabase(context);
+    Set<String>  referenced = new HashSet<>();
+    long         lastId     = 0;
+
+    while ((lastId = database.getReferencedFiles(lastId, ROW_BATCH_SIZE, referenced)) != -1);
+
+    long       cutoff    = System.currentTimeMillis() - MINIMUM_FILE_AGE;
+    File[]     files     = database.getPartFiles();
+    List<File> orphans   = new LinkedList<>();
+    List<File> batch     = new LinkedList<>();
+    long       reclaimed = 0;
+
+    for (File file : files) {
+      if (!referenced.contains(file.getName()) && file.lastModified() <= cutoff) {
+        orphans.add(file);
+      }
+    }
+
+    TextSecurePreferences.setPartCleanupTime(context, System.currentTimeMillis());
+
+    if (orphans.size() >= MINIMUM_FILES && orphans.size() * 100 > files.length * MAXIMUM_PERCENT) {
+      Log.w(TAG, orphans.size() + " of " + files.length + " part files look orphaned, " +
+                 "which is more than we'd expect. Not deleting any.");
+      return;
+    }
+
+    for (File orphan : orphans) {
+      batch.add(orphan);
+
+      if (batch.size() >= FILE_BATCH_SIZE) {
+        reclaimed += database.deleteOrphanedFiles(batch);
+        batch.clear();
+      }
+    }
+
+    reclaimed += database.deleteOrphanedFiles(batch);
+
+    Log.w(TAG, "Found " + orphans.size() + " orphaned part files, reclaimed " + reclaimed + " bytes");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Canceling part cleanup");
+  }
+}
@@ -5,6 +5,7 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.DeliveryReceipt;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.JobParameters;
@@ -15,6 +16,7 @@ import org.thoughtcrime.securesms.database.NotInDirectoryException;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 
 import java.io.IOException;
+import java.util.Collections;
 
 public class PushReceiveJob extends ContextJob {
 
@@ -88,8 +90,8 @@ public class PushReceiveJob extends ContextJob {
 
   private void handleReceipt(TextSecureEnvelope envelope) {
     Log.w(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
-    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(envelope.getSource(),
-                                                                             envelope.getTimestamp());
+    DeliveryReceipt receipt = new DeliveryReceipt(envelope.getSource(), envelope.getTimestamp());
+    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(Collections.singletonList(receipt));
   }
 
   private boolean isActiveNumber(Context context, String e164number) {
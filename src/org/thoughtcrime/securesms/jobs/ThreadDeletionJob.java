@@ -0,0 +1,52 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.util.List;
+
+/**
+ * Removes the messages and attachments of conversations that were marked
+ * deleted. The marks live in the thread table, so a pass interrupted by the
+ * process dying is finished by the one queued at the next start.
+ */
+public class ThreadDeletionJob extends ContextJob {
+
+  private static final String TAG = ThreadDeletionJob.class.getSimpleName();
+
+  public ThreadDeletionJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(ThreadDeletionJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun() {
+    ThreadDatabase database  = DatabaseFactory.getThreadDatabase(context);
+    List<Long>     threadIds = database.getDeletedThreadIds();
+
+    for (long threadId : threadIds) {
+      Log.w(TAG, "Purging deleted thread: " + threadId);
+      database.purgeDeletedThread(threadId);
+    }
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Canceling thread deletion");
+  }
+}
@@ -18,7 +18,6 @@ package org.thoughtcrime.securesms.mms;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.BitmapDrawable;
@@ -31,10 +30,7 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import org.thoughtcrime.securesms.R;
-import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
 import org.thoughtcrime.securesms.util.SmilUtil;
@@ -46,10 +42,9 @@ import org.thoughtcrime.securesms.crypto.MasterSecret;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.util.Collections;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.pdu.PduPart;
@@ -57,9 +52,7 @@ import ws.com.google.android.mms.pdu.PduPart;
 public class ImageSlide extends Slide {
   private static final String TAG = ImageSlide.class.getSimpleName();
 
-  private static final int MAX_CACHE_SIZE = 10;
-  private static final Map<Uri, SoftReference<Drawable>> thumbnailCache =
-      Collections.synchronizedMap(new LRUCache<Uri, SoftReference<Drawable>>(MAX_CACHE_SIZE));
+  private static final ExecutorService thumbnailResolver = Util.newLifoExecutor(Util.getBackgroundPoolSize());
 
   public ImageSlide(Context context, MasterSecret masterSecret, PduPart part) {
     super(context, masterSecret, part);
@@ -71,7 +64,7 @@ public class ImageSlide extends Slide {
 
   @Override
   public Drawable getThumbnail(int maxWidth, int maxHeight) {
-    Drawable thumbnail = getCachedThumbnail();
+    Drawable thumbnail = getCachedThumbnail(maxWidth, maxHeight);
 
     if (thumbnail != null) {
       return thumbnail;
@@ -86,8 +79,7 @@ public class ImageSlide extends Slide {
       long startDecode = System.currentTimeMillis();
 
       if (part.getDataUri() != null && part.getId() > -1) {
-        thumbnailBitmap = BitmapFactory.decodeStream(DatabaseFactory.getPartDatabase(context)
-                                                                    .getThumbnailStream(masterSecret, part.getId()));
+        thumbnailBitmap = ThumbnailCache.getInstance().get(context, masterSecret, part.getId(), maxWidth, maxHeight);
       } else if (part.getDataUri() != null) {
         Log.w(TAG, "generating thumbnail for new part");
         ThumbnailData thumbnailData = MediaUtil.generateThumbnail(context, masterSecret,
@@ -100,10 +92,7 @@ public class ImageSlide extends Slide {
 
       Log.w(TAG, "thumbnail decode/generate time: " + (System.currentTimeMillis() - startDecode) + "ms");
 
-      thumbnail = new BitmapDrawable(context.getResources(), thumbnailBitmap);
-      thumbnailCache.put(part.getDataUri(), new SoftReference<>(thumbnail));
-
-      return thumbnail;
+      return new BitmapDrawable(context.getResources(), thumbnailBitmap);
     } catch (IOException | BitmapDecodingException e) {
       Log.w(TAG, e);
       return context.getResources().getDrawable(R.drawable.ic_missing_thumbnail_picture);
@@ -117,7 +106,9 @@ public class ImageSlide extends Slide {
 
   @Override
   public void setThumbnailOn(ImageView imageView, final int width, final int height, final Drawable placeholder) {
-    Drawable thumbnail = getCachedThumbnail();
+    cancelPendingThumbnail(imageView);
+
+    Drawable thumbnail = getCachedThumbnail(width, height);
 
     if (thumbnail != null) {
       Log.w("ImageSlide", "Setting cached thumbnail...");
@@ -133,9 +124,16 @@ public class ImageSlide extends Slide {
     if (width == 0 || height == 0)
       return;
 
-    MmsDatabase.slideResolver.execute(new Runnable() {
+    Future<?> task = thumbnailResolver.submit(new Runnable() {
       @Override
       public void run() {
+        ImageView target = weakImageView.get();
+
+        if (target == null || target.getDrawable() != placeholder) {
+          Log.w(TAG, "view rebound before thumbnail load, skipping");
+          return;
+        }
+
         final Drawable bitmap = getThumbnail(width, height);
         final ImageView destination = weakImageView.get();
 
@@ -150,6 +148,17 @@ public class ImageSlide extends Slide {
         }
       }
     });
+
+    imageView.setTag(R.id.thumbnail_task_tag, task);
+  }
+
+  private static void cancelPendingThumbnail(ImageView imageView) {
+    Object task = imageView.getTag(R.id.thumbnail_task_tag);
+
+    if (task instanceof Future) {
+      ((Future<?>)task).cancel(false);
+      imageView.setTag(R.id.thumbnail_task_tag, null);
+    }
   }
 
   private void setThumbnailOn(ImageView imageView, Drawable thumbnail, boolean fromMemory) {
@@ -165,20 +174,14 @@ public class ImageSlide extends Slide {
     }
   }
 
-  private Drawable getCachedThumbnail() {
-    synchronized (thumbnailCache) {
-      SoftReference<Drawable> bitmapReference = thumbnailCache.get(part.getDataUri());
-      Log.w("ImageSlide", "Got soft reference: " + bitmapReference);
+  private Drawable getCachedThumbnail(int width, int height) {
+    Bitmap bitmap;
 
-      if (bitmapReference != null) {
-        Drawable bitmap = bitmapReference.get();
-        Log.w("ImageSlide", "Got cached bitmap: " + bitmap);
-        if (bitmap != null) return bitmap;
-        else                thumbnailCache.remove(part.getDataUri());
-      }
-    }
+    if (part.getId() > -1) bitmap = ThumbnailCache.getInstance().getCached(part.getId(), width, height);
+    else                   bitmap = part.getThumbnail();
 
-    return null;
+    if (bitmap != null) return new BitmapDrawable(context.getResources(), bitmap);
+    else                return null;
   }
 
   @Override
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.mms;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.util.BitmapDecodingException;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of decoded part thumbnails, keyed by part id and
+ * requested size. The first level is an in-memory LRU accounted in bytes,
+ * the second level is the encrypted thumbnail file in the part database.
+ */
+public class ThumbnailCache {
+  private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+  private static final int MEMORY_FRACTION = 8;
+  private static final int STATS_INTERVAL  = 100;
+
+  private static final ThumbnailCache instance = new ThumbnailCache();
+
+  private final LruCache<Key, Bitmap> memoryCache;
+  private final Map<Long, Set<Key>>   partKeys  = new HashMap<>();
+  private final AtomicLong            diskLoads = new AtomicLong(0);
+  private final AtomicLong            hits      = new AtomicLong(0);
+  private final AtomicLong            misses    = new AtomicLong(0);
+
+  public static ThumbnailCache getInstance() {
+    return instance;
+  }
+
+  private ThumbnailCache() {
+    int maxBytes = (int)Math.min(Runtime.getRuntime().maxMemory() / MEMORY_FRACTION, Integer.MAX_VALUE);
+
+    this.memoryCache = new LruCache<Key, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(Key key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+        if (newValue == null) unindex(key);
+      }
+    };
+  }
+
+  /**
+   * A fast path probe that only counts as a request when it hits. A miss is
+   * counted once, by the {@link #get} call that loads the thumbnail.
+   */
+  public Bitmap getCached(long partId, int width, int height) {
+    Bitmap bitmap = memoryCache.get(new Key(partId, width, height));
+
+    if (bitmap != null) {
+      record(hits);
+    }
+
+    return bitmap;
+  }
+
+  public Bitmap get(Context context, MasterSecret masterSecret, long partId, int width, int height)
+      throws IOException, BitmapDecodingException
+  {
+    Key    key    = new Key(partId, width, height);
+    Bitmap bitmap = memoryCache.get(key);
+
+    if (bitmap != null) {
+      record(hits);
+      return bitmap;
+    }
+
+    record(misses);
+
+    InputStream in = DatabaseFactory.getPartDatabase(context).getThumbnailStream(masterSecret, partId);
+
+    if (in == null) {
+      throw new FileNotFoundException("No thumbnail for part: " + partId);
+    }
+
+    diskLoads.incrementAndGet();
+    bitmap = decode(Util.readFully(in), width, height);
+
+    index(key);
+    memoryCache.put(key, bitmap);
+
+    return bitmap;
+  }
+
+  public void remove(long partId) {
+    List<Key> keys;
+
+    synchronized (partKeys) {
+      Set<Key> indexed = partKeys.get(partId);
+      if (indexed == null) return;
+
+      keys = new LinkedList<>(indexed);
+    }
+
+    for (Key key : keys) {
+      memoryCache.remove(key);
+    }
+  }
+
+  public void clear() {
+    memoryCache.evictAll();
+  }
+
+  public void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      Log.w(TAG, "Trim level " + level + ", evicting all thumbnails. " + getStats());
+      memoryCache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+               level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+               level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+    {
+      Log.w(TAG, "Trim level " + level + ", halving thumbnail cache. " + getStats());
+      memoryCache.trimToSize(memoryCache.size() / 2);
+    }
+  }
+
+  public String getStats() {
+    long hitCount  = hits.get();
+    long missCount = misses.get();
+    long total     = hitCount + missCount;
+
+    return "thumbnail cache: " + memoryCache.size() + "/" + memoryCache.maxSize() + " bytes, " +
+           "hits " + hitCount + ", misses " + missCount + ", disk loads " + diskLoads.get() + ", " +
+           "evictions " + memoryCache.evictionCount() + ", " +
+           "hit rate " + (total == 0 ? 0 : (hitCount * 100 / total)) + "%";
+  }
+
+  private void index(Key key) {
+    synchronized (partKeys) {
+      Set<Key> keys = partKeys.get(key.partId);
+
+      if (keys == null) {
+        keys = new HashSet<>();
+        partKeys.put(key.partId, keys);
+      }
+
+      keys.add(key);
+    }
+  }
+
+  private void unindex(Key key) {
+    synchronized (partKeys) {
+      Set<Key> keys = partKeys.get(key.partId);
+
+      if (keys != null && keys.remove(key) && keys.isEmpty()) {
+        partKeys.remove(key.partId);
+      }
+    }
+  }
+
+  private void record(AtomicLong counter) {
+    counter.incrementAndGet();
+
+    if ((hits.get() + misses.get()) % STATS_INTERVAL == 0) {
+      Log.w(TAG, getStats());
+    }
+  }
+
+  private static Bitmap decode(byte[] data, int width, int height) throws BitmapDecodingException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds    = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+    int sampleSize = 1;
+
+    if (width > 0 && height > 0) {
+      while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+        sampleSize *= 2;
+      }
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize       = sampleSize;
+
+    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+    if (bitmap == null) {
+      throw new BitmapDecodingException("Decoded thumbnail was null.");
+    }
+
+    return bitmap;
+  }
+
+  private static class Key {
+    private final long partId;
+    private final int  width;
+    private final int  height;
+
+    private Key(long partId, int width, int height) {
+      this.partId = partId;
+      this.width  = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+
+      Key that = (Key)other;
+      return this.partId == that.partId && this.width == that.width && this.height == that.height;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)(partId ^ (partId >>> 32)) * 31 * 31 + width * 31 + height;
+    }
+  }
+}
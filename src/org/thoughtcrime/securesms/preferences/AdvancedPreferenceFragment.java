@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.preferences;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.provider.ContactsContract;
@@ -14,6 +15,7 @@ import org.thoughtcrime.securesms.LogSubmitActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.contacts.ContactIdentityManager;
+import org.thoughtcrime.securesms.database.QueryProfiler;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 public class AdvancedPreferenceFragment extends PreferenceFragment {
@@ -29,9 +31,12 @@ public class AdvancedPreferenceFragment extends PreferenceFragment {
     addPreferencesFromResource(R.xml.preferences_advanced);
 
     initializeIdentitySelection();
+    initializePlatformSpecificOptions();
 
     this.findPreference(SUBMIT_DEBUG_LOG_PREF)
       .setOnPreferenceClickListener(new SubmitDebugLogListener());
+    this.findPreference(TextSecurePreferences.QUERY_PROFILING_PREF)
+      .setOnPreferenceChangeListener(new QueryProfilingToggleListener());
   }
 
   @Override
@@ -70,6 +75,14 @@ public class AdvancedPreferenceFragment extends PreferenceFragment {
     }
   }
 
+  private void initializePlatformSpecificOptions() {
+    Preference walPreference = findPreference(TextSecurePreferences.DATABASE_WAL_PREF);
+
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && walPreference != null) {
+      getPreferenceScreen().removePreference(walPreference);
+    }
+  }
+
   private class IdentityPreferenceClickListener implements Preference.OnPreferenceClickListener {
     @Override
     public boolean onPreferenceClick(Preference preference) {
@@ -89,6 +102,14 @@ public class AdvancedPreferenceFragment extends PreferenceFragment {
     }
   }
 
+  private class QueryProfilingToggleListener implements Preference.OnPreferenceChangeListener {
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+      QueryProfiler.getInstance().setEnabled((Boolean)newValue);
+      return true;
+    }
+  }
+
   private class SubmitDebugLogListener implements Preference.OnPreferenceClickListener {
     @Override
     public boolean onPreferenceClick(Preference preference) {
@@ -81,6 +81,14 @@ public class Recipient {
     });
   }
 
+  Recipient(String name, String number, Uri contactUri, Bitmap contactPhoto,
+            long recipientId, ListenableFutureTask<RecipientDetails> future)
+  {
+    this(number, contactPhoto, recipientId, future);
+    this.name       = name;
+    this.contactUri = contactUri;
+  }
+
   Recipient(String name, String number, long recipientId, Uri contactUri, Bitmap contactPhoto) {
     this.number                     = number;
     this.recipientId                = recipientId;
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.recipients;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Collects asynchronous recipient lookups and resolves each batch with a
+ * single query on normalized numbers, instead of one PhoneLookup query per
+ * recipient. Numbers that don't match exactly, such as contacts saved
+ * without a country code, still go through PhoneLookup's fuzzy match. The
+ * most recently requested recipients, which are the ones on screen, go first.
+ */
+class RecipientBatchResolver {
+
+  private static final String TAG = RecipientBatchResolver.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 100;
+
+  private static final String[] PHONE_PROJECTION = new String[] {
+    Phone.NUMBER,
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.PHOTO_ID
+  };
+
+  private static final String[] NORMALIZED_PROJECTION = new String[] {
+    Phone.NUMBER,
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.PHOTO_ID,
+    Phone.NORMALIZED_NUMBER
+  };
+
+  private static final String[] LOOKUP_PROJECTION = new String[] {
+    PhoneLookup.NUMBER,
+    PhoneLookup.DISPLAY_NAME,
+    PhoneLookup.LOOKUP_KEY,
+    PhoneLookup._ID,
+    PhoneLookup.PHOTO_ID
+  };
+
+  private final Context                      context;
+  private final ExecutorService              batchExecutor;
+  private final RecipientDetailsCache        detailsCache;
+  private final LinkedList<PendingRecipient> pending = new LinkedList<>();
+
+  private boolean drainScheduled = false;
+
+  RecipientBatchResolver(Context context, ExecutorService batchExecutor, RecipientDetailsCache detailsCache) {
+    this.context       = context.getApplicationContext();
+    this.batchExecutor = batchExecutor;
+    this.detailsCache  = detailsCache;
+  }
+
+  void enqueue(PendingRecipient recipient) {
+    synchronized (pending) {
+      pending.addFirst(recipient);
+
+      if (!drainScheduled) {
+        drainScheduled = true;
+        batchExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        });
+      }
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      List<PendingRecipient> batch = new LinkedList<>();
+
+      synchronized (pending) {
+        while (!pending.isEmpty() && batch.size() < BATCH_SIZE) {
+          batch.add(pending.removeFirst());
+        }
+
+        if (batch.isEmpty()) {
+          drainScheduled = false;
+          return;
+        }
+      }
+
+      List<String> numbers = new LinkedList<>();
+
+      for (PendingRecipient recipient : batch) {
+        numbers.add(recipient.getNumber());
+      }
+
+      Log.w(TAG, "Resolving batch of " + batch.size() + " recipients");
+
+      Map<String, ContactDetails> contacts = lookup(context, numbers);
+      Map<String, ContactDetails> resolved = new HashMap<>();
+
+      for (PendingRecipient recipient : batch) {
+        ContactDetails details = contacts.get(recipient.getNumber());
+        resolved.put(recipient.getNumber(), details);
+        recipient.resolve(details);
+      }
+
+      detailsCache.put(resolved);
+    }
+  }
+
+  /**
+   * Looks up the contacts for a batch of numbers, at most a few hundred at
+   * a time.
+   *
+   * @return the contact of each number that has one, keyed by the number as given.
+   */
+  static Map<String, ContactDetails> lookup(Context context, Collection<String> numbers) {
+    Map<String, ContactDetails> results = new HashMap<>();
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      lookupNormalized(context, numbers, results);
+    }
+
+    for (String number : numbers) {
+      if (!results.containsKey(number)) {
+        ContactDetails details = lookupFuzzy(context, number);
+        if (details != null) results.put(number, details);
+      }
+    }
+
+    return results;
+  }
+
+  private static void lookupNormalized(Context context, Collection<String> numbers, Map<String, ContactDetails> results) {
+    Map<String, List<String>> byCanonical = new HashMap<>();
+
+    for (String number : numbers) {
+      String canonical = canonicalize(context, number);
+      if (canonical == null) continue;
+
+      if (!byCanonical.containsKey(canonical)) byCanonical.put(canonical, new LinkedList<String>());
+      byCanonical.get(canonical).add(number);
+    }
+
+    if (byCanonical.isEmpty()) return;
+
+    String   placeholders = TextUtils.join(", ", Collections.nCopies(byCanonical.size(), "?"));
+    String[] args         = byCanonical.keySet().toArray(new String[byCanonical.size()]);
+    Cursor   cursor       = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, NORMALIZED_PROJECTION,
+                                                  Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ")",
+                                                  args, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        List<String> matches = byCanonical.remove(cursor.getString(5));
+        if (matches == null) continue;
+
+        ContactDetails details = getContactDetails(cursor);
+
+        for (String number : matches) {
+          results.put(number, details);
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private static ContactDetails lookupFuzzy(Context context, String number) {
+    Uri    uri    = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(uri, LOOKUP_PROJECTION, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return getContactDetails(cursor);
+      else                                        return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Reads the contact at the cursor's position, which must have been queried
+   * with number, name, lookup key, contact id and photo id as its first columns.
+   */
+  private static ContactDetails getContactDetails(Cursor cursor) {
+    long contactId = cursor.getLong(3);
+
+    return new ContactDetails(cursor.getString(1), cursor.getString(0),
+                              Contacts.getLookupUri(contactId, cursor.getString(2)),
+                              Uri.withAppendedPath(Contacts.CONTENT_URI, String.valueOf(contactId)),
+                              cursor.getLong(4));
+  }
+
+  /**
+   * Indexes the whole address book by canonical number, for passes that
+   * check every cached recipient at once.
+   */
+  static Map<String, ContactDetails> getContactIndex(Context context) {
+    Map<String, ContactDetails> results = new HashMap<>();
+    Cursor                      cursor  = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String number = cursor.getString(0);
+        String key    = canonicalize(context, number);
+
+        if (key != null && !results.containsKey(key)) {
+          results.put(key, getContactDetails(cursor));
+        }
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  static String canonicalize(Context context, String number) {
+    if (number == null) return null;
+
+    try {
+      return Util.canonicalizeNumber(context, number);
+    } catch (InvalidNumberException e) {
+      return null;
+    }
+  }
+
+  static class ContactDetails {
+    final String name;
+    final String number;
+    final Uri    lookupUri;
+    final Uri    contactUri;
+    final long   photoId;
+
+    ContactDetails(String name, String number, Uri lookupUri, Uri contactUri, long photoId) {
+      this.name       = name;
+      this.number     = number;
+      this.lookupUri  = lookupUri;
+      this.contactUri = contactUri;
+      this.photoId    = photoId;
+    }
+  }
+
+  interface PendingRecipient {
+    String getNumber();
+    void resolve(ContactDetails details);
+  }
+}
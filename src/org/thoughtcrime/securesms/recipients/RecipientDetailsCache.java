@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.recipients;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
+import org.thoughtcrime.securesms.database.RecipientDetailsDatabase;
+import org.thoughtcrime.securesms.database.RecipientDetailsDatabase.CachedDetails;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientBatchResolver.ContactDetails;
+import org.thoughtcrime.securesms.util.GroupUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps the persisted recipient details in memory so that a cold start can
+ * render known recipients without touching the contacts provider. Contact
+ * changes are coalesced for a few seconds, then the stored entries are
+ * checked against a single contacts query on a background thread of their
+ * own. The old entries are served until that check finishes.
+ */
+class RecipientDetailsCache {
+
+  private static final String TAG = RecipientDetailsCache.class.getSimpleName();
+
+  private static final int  LOOKUP_BATCH_SIZE       = 100;
+  private static final long REVALIDATE_DELAY_MILLIS = 5000;
+
+  private final Context                  context;
+  private final ExecutorService          executor;
+  private final Handler                  revalidationHandler;
+  private final RecipientDetailsDatabase database;
+
+  private volatile Map<String, CachedDetails> entries;
+
+  private boolean revalidationScheduled = false;
+
+  RecipientDetailsCache(Context context, ExecutorService executor) {
+    this.context  = context.getApplicationContext();
+    this.executor = executor;
+    this.database = DatabaseFactory.getRecipientDetailsDatabase(context);
+
+    HandlerThread revalidationThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    revalidationThread.start();
+
+    this.revalidationHandler = new Handler(revalidationThread.getLooper());
+
+    this.context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true, new ContentObserver(null) {
+      @Override
+      public void onChange(boolean selfChange) {
+        invalidate();
+      }
+    });
+  }
+
+  void warm() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long                       start  = System.currentTimeMillis();
+        Map<String, CachedDetails> stored = database.getAllDetails();
+
+        synchronized (RecipientDetailsCache.this) {
+          if (entries == null) {
+            entries = new ConcurrentHashMap<>(stored);
+          }
+        }
+
+        Log.w(TAG, "Loaded " + stored.size() + " recipients in " + (System.currentTimeMillis() - start) + "ms");
+
+        indexMissingRecipients();
+      }
+    });
+  }
+
+  CachedDetails get(String address) {
+    Map<String, CachedDetails> current = entries;
+
+    if (current == null) return null;
+    else                 return current.get(address);
+  }
+
+  void put(Map<String, ContactDetails> resolved) {
+    Map<String, CachedDetails> current = entries;
+    Map<String, CachedDetails> changed = new HashMap<>();
+
+    for (Map.Entry<String, ContactDetails> entry : resolved.entrySet()) {
+      CachedDetails details = toCachedDetails(entry.getValue());
+
+      if (current == null || !details.equals(current.get(entry.getKey()))) {
+        changed.put(entry.getKey(), details);
+      }
+    }
+
+    if (!changed.isEmpty()) {
+      database.setDetails(changed);
+      if (current != null) current.putAll(changed);
+    }
+  }
+
+  void invalidate() {
+    synchronized (this) {
+      if (revalidationScheduled) return;
+      revalidationScheduled = true;
+    }
+
+    revalidationHandler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (RecipientDetailsCache.this) {
+          revalidationScheduled = false;
+        }
+
+        revalidate();
+      }
+    }, REVALIDATE_DELAY_MILLIS);
+  }
+
+  private void revalidate() {
+    long                        start    = System.currentTimeMillis();
+    Map<String, CachedDetails>  stored   = database.getAllDetails();
+    Map<String, ContactDetails> contacts = RecipientBatchResolver.getContactIndex(context);
+    Map<String, CachedDetails>  changed  = new HashMap<>();
+    List<String>                misses   = new ArrayList<>();
+
+    for (Map.Entry<String, CachedDetails> entry : stored.entrySet()) {
+      ContactDetails contact = contacts.get(RecipientBatchResolver.canonicalize(context, entry.getKey()));
+
+      // A non-contact can only have become one by being added with this number.
+      if (contact == null && !entry.getValue().isContact()) {
+        continue;
+      }
+
+      if (contact == null && !GroupUtil.isEncodedGroup(entry.getKey())) {
+        misses.add(entry.getKey());
+        continue;
+      }
+
+      CachedDetails details = toCachedDetails(contact);
+
+      if (!details.equals(entry.getValue())) {
+        changed.put(entry.getKey(), details);
+      }
+    }
+
+    for (Map.Entry<String, CachedDetails> entry : lookup(misses).entrySet()) {
+      if (!entry.getValue().equals(stored.get(entry.getKey()))) {
+        changed.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    database.setDetails(changed);
+    stored.putAll(changed);
+
+    synchronized (this) {
+      if (entries == null) entries = new ConcurrentHashMap<>(stored);
+      else                 entries.putAll(changed);
+    }
+
+    Log.w(TAG, "Revalidated " + stored.size() + " recipients, " + changed.size() + " changed, in " +
+               (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Adds thread recipients that the search index hasn't seen yet, such as
+   * those from before the index existed or that were never displayed.
+   */
+  private void indexMissingRecipients() {
+    SearchDatabase search       = DatabaseFactory.getSearchDatabase(context);
+    List<Long>     recipientIds = search.getUnindexedRecipientIds();
+
+    if (recipientIds.isEmpty()) return;
+
+    CanonicalAddressDatabase addresses = CanonicalAddressDatabase.getInstance(context);
+    List<String>             numbers   = new ArrayList<>();
+
+    for (long recipientId : recipientIds) {
+      String address = addresses.getAddressFromId(recipientId);
+
+      if      (address == null)                   continue;
+      else if (GroupUtil.isEncodedGroup(address)) search.setRecipient(recipientId, getGroupTitle(address), null);
+      else                                        numbers.add(address);
+    }
+
+    Map<String, CachedDetails> resolved = lookup(numbers);
+    database.setDetails(resolved);
+
+    synchronized (this) {
+      if (entries != null) entries.putAll(resolved);
+    }
+
+    Log.w(TAG, "Indexed " + recipientIds.size() + " recipients for search");
+  }
+
+  /**
+   * Resolves numbers a batch at a time, without indexing the whole address
+   * book. This also finds contacts that the index can't match exactly, such
+   * as those saved without a country code.
+   */
+  private Map<String, CachedDetails> lookup(List<String> numbers) {
+    Map<String, CachedDetails> resolved = new HashMap<>();
+
+    for (int i=0;i<numbers.size();i+=LOOKUP_BATCH_SIZE) {
+      List<String>                batch    = numbers.subList(i, Math.min(i + LOOKUP_BATCH_SIZE, numbers.size()));
+      Map<String, ContactDetails> contacts = RecipientBatchResolver.lookup(context, batch);
+
+      for (String number : batch) {
+        resolved.put(number, toCachedDetails(contacts.get(number)));
+      }
+    }
+
+    return resolved;
+  }
+
+  private String getGroupTitle(String encodedGroupId) {
+    try {
+      GroupRecord record = DatabaseFactory.getGroupDatabase(context)
+                                         .getGroup(GroupUtil.getDecodedId(encodedGroupId));
+
+      return record == null ? null : record.getTitle();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static CachedDetails toCachedDetails(ContactDetails contact) {
+    if (contact == null) {
+      return new CachedDetails(null, null, null, null, 0);
+    }
+
+    return new CachedDetails(contact.name, contact.number, toString(contact.lookupUri),
+                             toString(contact.contactUri), contact.photoId);
+  }
+
+  private static String toString(Uri uri) {
+    return uri == null ? null : uri.toString();
+  }
+}
@@ -122,6 +122,15 @@ public class RecipientFactory {
     return getRecipientForNumber(context, recipient, asynchronous);
   }
 
+  public static void warmCache(Context context) {
+    provider.warmCache(context);
+  }
+
+  public static void invalidateContacts(Context context) {
+    ContactPhotoFactory.clearCache();
+    provider.invalidateContacts(context);
+  }
+
   public static void clearCache() {
     ContactPhotoFactory.clearCache();
     provider.clearCache();
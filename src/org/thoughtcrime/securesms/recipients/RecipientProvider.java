@@ -19,7 +19,6 @@ package org.thoughtcrime.securesms.recipients;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
@@ -29,6 +28,7 @@ import org.thoughtcrime.securesms.contacts.ContactPhotoFactory;
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
+import org.thoughtcrime.securesms.database.RecipientDetailsDatabase.CachedDetails;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
@@ -45,6 +45,10 @@ public class RecipientProvider {
 
   private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
   private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService     asyncPhotoResolver     = Util.newLifoExecutor(Util.getBackgroundPoolSize());
+
+  private static RecipientDetailsCache  detailsCache;
+  private static RecipientBatchResolver batchResolver;
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -92,17 +96,29 @@ public class RecipientProvider {
     final String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
 
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
-      @Override
-      public RecipientDetails call() throws Exception {
-        if (isGroupRecipient) return getGroupRecipientDetails(context, number);
-        else                  return getRecipientDetails(context, number);
+    ListenableFutureTask<RecipientDetails> future;
+
+    if (isGroupRecipient) {
+      future = new ListenableFutureTask<>(new Callable<RecipientDetails>() {
+        @Override
+        public RecipientDetails call() throws Exception {
+          return getGroupRecipientDetails(context, number);
+        }
+      });
+
+      asyncPhotoResolver.execute(future);
+    } else {
+      CachedDetails cached = getDetailsCache(context).get(number);
+
+      if (cached != null) {
+        return getCachedRecipient(context, recipientId, number, cached);
       }
-    };
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<RecipientDetails>(task);
+      PendingContactRecipient pending = new PendingContactRecipient(context, number);
+      future = pending.getFuture();
 
-    asyncRecipientResolver.submit(future);
+      getBatchResolver(context).enqueue(pending);
+    }
 
     Bitmap contactPhoto;
 
@@ -118,6 +134,57 @@ public class RecipientProvider {
     return recipient;
   }
 
+  private Recipient getCachedRecipient(final Context context, long recipientId, String number,
+                                       final CachedDetails cached)
+  {
+    Bitmap    defaultPhoto = ContactPhotoFactory.getDefaultContactPhoto(context);
+    Recipient recipient;
+
+    if (cached.isContact()) {
+      ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(new Callable<RecipientDetails>() {
+        @Override
+        public RecipientDetails call() throws Exception {
+          Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, cached.getContactUri());
+          return new RecipientDetails(cached.getName(), cached.getNumber(), cached.getLookupUri(), contactPhoto);
+        }
+      });
+
+      recipient = new Recipient(cached.getName(), cached.getNumber(), cached.getLookupUri(),
+                                defaultPhoto, recipientId, future);
+      asyncPhotoResolver.execute(future);
+    } else {
+      recipient = new Recipient(null, number, recipientId, null, defaultPhoto);
+    }
+
+    recipientCache.put(recipientId, recipient);
+    return recipient;
+  }
+
+  private static synchronized RecipientDetailsCache getDetailsCache(Context context) {
+    if (detailsCache == null) {
+      detailsCache = new RecipientDetailsCache(context, asyncRecipientResolver);
+    }
+
+    return detailsCache;
+  }
+
+  private static synchronized RecipientBatchResolver getBatchResolver(Context context) {
+    if (batchResolver == null) {
+      batchResolver = new RecipientBatchResolver(context, asyncRecipientResolver, getDetailsCache(context));
+    }
+
+    return batchResolver;
+  }
+
+  public void warmCache(Context context) {
+    getDetailsCache(context).warm();
+  }
+
+  public void invalidateContacts(Context context) {
+    getDetailsCache(context).invalidate();
+    clearCache();
+  }
+
   public void clearCache() {
     recipientCache.clear();
   }
@@ -153,12 +220,7 @@ public class RecipientProvider {
                                                          .getGroup(GroupUtil.getDecodedId(groupId));
 
       if (record != null) {
-        byte[] avatarBytes = record.getAvatar();
-        Bitmap avatar;
-
-        if (avatarBytes == null) avatar = ContactPhotoFactory.getDefaultGroupPhoto(context);
-        else                     avatar = BitmapFactory.decodeByteArray(avatarBytes, 0, avatarBytes.length);
-
+        Bitmap avatar = ContactPhotoFactory.getGroupPhoto(context, groupId, record.getAvatar());
         return new RecipientDetails(record.getTitle(), groupId, null, avatar);
       }
 
@@ -169,6 +231,50 @@ public class RecipientProvider {
     }
   }
 
+  /**
+   * A recipient waiting on the batch resolver. Once its contact is known,
+   * the photo is loaded on the photo pool so that decoding doesn't hold up
+   * the rest of the batch.
+   */
+  private static class PendingContactRecipient implements RecipientBatchResolver.PendingRecipient {
+    private final String                                 number;
+    private final ListenableFutureTask<RecipientDetails> future;
+
+    private volatile RecipientBatchResolver.ContactDetails details;
+
+    private PendingContactRecipient(final Context context, String number) {
+      this.number = number;
+      this.future = new ListenableFutureTask<>(new Callable<RecipientDetails>() {
+        @Override
+        public RecipientDetails call() throws Exception {
+          RecipientBatchResolver.ContactDetails contact = details;
+
+          if (contact == null) return null;
+
+          Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, contact.contactUri);
+          return new RecipientDetails(contact.name, contact.number, contact.lookupUri, contactPhoto);
+        }
+      });
+    }
+
+    public ListenableFutureTask<RecipientDetails> getFuture() {
+      return future;
+    }
+
+    @Override
+    public String getNumber() {
+      return number;
+    }
+
+    @Override
+    public void resolve(RecipientBatchResolver.ContactDetails details) {
+      this.details = details;
+
+      if (details == null) future.run();
+      else                 asyncPhotoResolver.execute(future);
+    }
+  }
+
   public static class RecipientDetails {
     public final String name;
     public final String number;
@@ -62,14 +62,15 @@ public class MessageSender {
                           final long threadId,
                           final boolean forceSms)
   {
-    EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
-    Recipients            recipients  = message.getRecipients();
-    boolean               keyExchange = message.isKeyExchange();
+    EncryptingSmsDatabase database       = DatabaseFactory.getEncryptingSmsDatabase(context);
+    ThreadDatabase        threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    Recipients            recipients     = message.getRecipients();
+    boolean               keyExchange    = message.isKeyExchange();
 
     long allocatedThreadId;
 
-    if (threadId == -1) {
-      allocatedThreadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
+    if (threadId == -1 || threadDatabase.isDeleted(threadId)) {
+      allocatedThreadId = threadDatabase.getThreadIdFor(recipients);
     } else {
       allocatedThreadId = threadId;
     }
@@ -93,7 +94,7 @@ public class MessageSender {
 
       long allocatedThreadId;
 
-      if (threadId == -1) {
+      if (threadId == -1 || threadDatabase.isDeleted(threadId)) {
         allocatedThreadId = threadDatabase.getThreadIdFor(message.getRecipients(), message.getDistributionType());
       } else {
         allocatedThreadId = threadId;
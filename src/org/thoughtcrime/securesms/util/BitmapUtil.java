@@ -23,6 +23,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
 
 import com.android.gallery3d.data.Exif;
 
@@ -31,7 +33,8 @@ public class BitmapUtil {
 
   private static final int MAX_COMPRESSION_QUALITY  = 95;
   private static final int MIN_COMPRESSION_QUALITY  = 50;
-  private static final int MAX_COMPRESSION_ATTEMPTS = 4;
+  private static final int MAX_COMPRESSION_ATTEMPTS = 6;
+  private static final int MAX_HEADER_SIZE          = 256 * 1024;
 
   public static byte[] createScaledBytes(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight, int maxSize)
       throws IOException, BitmapDecodingException
@@ -43,24 +46,41 @@ public class BitmapUtil {
       Log.w(TAG, "OutOfMemoryError when scaling precisely, doing rough scale to save memory instead");
       bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, true);
     }
-    int quality         = MAX_COMPRESSION_QUALITY;
-    int attempts        = 0;
+    ByteArrayOutputStream baos     = new ByteArrayOutputStream(maxSize);
+    byte[]                result   = null;
+    int                   quality  = MAX_COMPRESSION_QUALITY;
+    int                   attempts = 1;
 
-    ByteArrayOutputStream baos;
+    bitmap.compress(Bitmap.CompressFormat.JPEG, MAX_COMPRESSION_QUALITY, baos);
 
-    do {
-      baos = new ByteArrayOutputStream();
-      bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-
-      quality = Math.max((quality * maxSize) / baos.size(), MIN_COMPRESSION_QUALITY);
-    } while (baos.size() > maxSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
+    if (baos.size() <= maxSize) {
+      result = baos.toByteArray();
+    } else {
+      int low  = MIN_COMPRESSION_QUALITY;
+      int high = MAX_COMPRESSION_QUALITY - 1;
+
+      while (low <= high && attempts++ < MAX_COMPRESSION_ATTEMPTS) {
+        int middle = (low + high) / 2;
+
+        baos.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, middle, baos);
+
+        if (baos.size() <= maxSize) {
+          result  = baos.toByteArray();
+          quality = middle;
+          low     = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+    }
 
-    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
+    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + quality + ", " + attempts + " attempt(s)");
 
     bitmap.recycle();
 
-    if (baos.size() <= maxSize) return baos.toByteArray();
-    else                        throw new IOException("Unable to scale image below: " + baos.size());
+    if (result != null) return result;
+    else                throw new IOException("Unable to scale image below: " + baos.size());
   }
 
   public static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight)
@@ -80,14 +100,49 @@ public class BitmapUtil {
   private static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight, boolean constrainedMemory)
       throws IOException, BitmapDecodingException
   {
-    InputStream is = PartAuthority.getPartStream(context, masterSecret, uri);
-    if (is == null) throw new IOException("Couldn't obtain InputStream");
-    return createScaledBitmap(is,
+    InputStream in = PartAuthority.getPartStream(context, masterSecret, uri);
+    if (in == null) throw new IOException("Couldn't obtain InputStream");
+
+    // BitmapFactory marks the stream it's given itself before KitKat, which
+    // would override a mark set here, so the header is read into an array
+    // that both the bounds and Exif passes can read from.
+    byte[] header = readHeader(in);
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds    = true;
+    BitmapFactory.decodeByteArray(header, 0, header.length, options);
+
+    if (options.outWidth > 0 && options.outHeight > 0) {
+      int    orientation = Exif.getOrientation(new ByteArrayInputStream(header));
+      Bitmap bitmap      = createScaledBitmap(new SequenceInputStream(new ByteArrayInputStream(header), in),
+                                              maxWidth, maxHeight, options, constrainedMemory);
+
+      if (orientation != 0) return rotateBitmap(bitmap, orientation);
+      else                  return bitmap;
+    }
+
+    Log.w(TAG, "Image header exceeds " + MAX_HEADER_SIZE + " bytes, falling back to separate passes");
+    in.close();
+
+    return createScaledBitmap(PartAuthority.getPartStream(context, masterSecret, uri),
                               PartAuthority.getPartStream(context, masterSecret, uri),
                               PartAuthority.getPartStream(context, masterSecret, uri),
                               maxWidth, maxHeight, constrainedMemory);
   }
 
+  private static byte[] readHeader(InputStream in) throws IOException {
+    byte[] buffer = new byte[MAX_HEADER_SIZE];
+    int    offset = 0;
+    int    read;
+
+    while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+      offset += read;
+    }
+
+    if (offset == buffer.length) return buffer;
+    else                         return Arrays.copyOf(buffer, offset);
+  }
+
   private static Bitmap createScaledBitmap(InputStream measure, InputStream orientationStream, InputStream data,
                                            int maxWidth, int maxHeight, boolean constrainedMemory)
       throws BitmapDecodingException
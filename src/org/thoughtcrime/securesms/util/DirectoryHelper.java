@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.util;
 
 import android.content.Context;
 import android.util.Log;
+import android.util.Pair;
 import android.widget.Toast;
 
 import org.thoughtcrime.securesms.R;
@@ -11,16 +12,32 @@ import org.thoughtcrime.securesms.push.TextSecureCommunicationFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class DirectoryHelper {
   private static final String TAG = DirectoryHelper.class.getSimpleName();
 
+  private static final long FULL_REFRESH_INTERVAL = TimeUnit.DAYS.toMillis(7);
+  private static final long STALE_TOKEN_AGE       = TimeUnit.DAYS.toMillis(2);
+
+  private static final int  TOKEN_CHUNK_SIZE      = 500;
+  private static final int  TOKEN_PARALLELISM     = 3;
+  private static final int  MAX_CHUNK_ATTEMPTS    = 3;
+
   public static void refreshDirectoryWithProgressDialog(final Context context, final DirectoryUpdateFinishedListener listener) {
     if (!TextSecurePreferences.isPushRegistered(context)) {
       Toast.makeText(context.getApplicationContext(),
@@ -36,7 +53,7 @@ public class DirectoryHelper {
       @Override
       protected Void doInBackground(Void... voids) {
         try {
-          DirectoryHelper.refreshDirectory(context.getApplicationContext());
+          DirectoryHelper.refreshDirectory(context.getApplicationContext(), true);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -53,33 +70,149 @@ public class DirectoryHelper {
   }
 
   public static void refreshDirectory(final Context context) throws IOException {
-    refreshDirectory(context, TextSecureCommunicationFactory.createManager(context));
+    refreshDirectory(context, false);
+  }
+
+  public static void refreshDirectory(final Context context, final boolean forceFullRefresh) throws IOException {
+    refreshDirectory(context, TextSecureCommunicationFactory.createManager(context),
+                     TextSecurePreferences.getLocalNumber(context), forceFullRefresh);
   }
 
-  public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager)
+  public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager, final String localNumber)
       throws IOException
   {
-    refreshDirectory(context, accountManager, TextSecurePreferences.getLocalNumber(context));
+    refreshDirectory(context, accountManager, localNumber, true);
   }
 
-  public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager, final String localNumber)
+  /**
+   * Looks up push eligibility for the user's contacts. Unless a full refresh
+   * is forced or due, only numbers that have never been looked up or whose
+   * last lookup is older than {@link #STALE_TOKEN_AGE} are sent.
+   */
+  public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager,
+                                      final String localNumber, final boolean forceFullRefresh)
       throws IOException
   {
-    TextSecureDirectory       directory              = TextSecureDirectory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    Map<String, String>       tokenMap               = DirectoryUtil.getDirectoryServerTokenMap(eligibleContactNumbers);
-    List<ContactTokenDetails> activeTokens           = accountManager.getContacts(tokenMap.keySet());
-
-    if (activeTokens != null) {
-      for (ContactTokenDetails activeToken : activeTokens) {
-        eligibleContactNumbers.remove(tokenMap.get(activeToken.getToken()));
-        activeToken.setNumber(tokenMap.get(activeToken.getToken()));
+    TextSecureDirectory directory              = TextSecureDirectory.getInstance(context);
+    Set<String>         eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+    long                now                    = System.currentTimeMillis();
+    boolean             fullRefresh            = forceFullRefresh ||
+                                                 now - TextSecurePreferences.getDirectoryFullRefreshTime(context) > FULL_REFRESH_INTERVAL;
+    int                 eligibleCount          = eligibleContactNumbers.size();
+
+    if (!fullRefresh) {
+      eligibleContactNumbers = directory.getNumbersNeedingRefresh(eligibleContactNumbers, now - STALE_TOKEN_AGE);
+    }
+
+    Log.w(TAG, (fullRefresh ? "Full" : "Delta") + " directory refresh, querying " + eligibleContactNumbers.size() +
+               " of " + eligibleCount + " tokens (" + (eligibleCount - eligibleContactNumbers.size()) + " avoided)");
+
+    if (eligibleContactNumbers.isEmpty()) {
+      return;
+    }
+
+    Map<String, String> tokenMap = DirectoryUtil.getDirectoryServerTokenMap(eligibleContactNumbers);
+    ChunkedResult       result   = getContacts(accountManager, tokenMap.keySet(), TOKEN_CHUNK_SIZE, TOKEN_PARALLELISM);
+
+    for (String failedToken : result.failedTokens) {
+      eligibleContactNumbers.remove(tokenMap.get(failedToken));
+    }
+
+    for (ContactTokenDetails activeToken : result.activeTokens) {
+      eligibleContactNumbers.remove(tokenMap.get(activeToken.getToken()));
+      activeToken.setNumber(tokenMap.get(activeToken.getToken()));
+    }
+
+    directory.setNumbers(result.activeTokens, eligibleContactNumbers);
+
+    if (result.failure != null) {
+      Log.w(TAG, result.failedTokens.size() + " tokens could not be looked up");
+      throw result.failure;
+    }
+
+    if (fullRefresh) {
+      TextSecurePreferences.setDirectoryFullRefreshTime(context, now);
+    }
+  }
+
+  /**
+   * Looks up tokens in chunks of at most chunkSize, with up to parallelism
+   * requests in flight. Each chunk is retried on its own, and tokens from
+   * chunks that still fail are reported instead of failing the whole lookup.
+   */
+  private static ChunkedResult getContacts(final TextSecureAccountManager accountManager,
+                                           Set<String> tokens, int chunkSize, int parallelism)
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    ChunkedResult   result   = new ChunkedResult();
+    Set<String>     chunk    = new HashSet<>();
+
+    List<Pair<Set<String>, Future<List<ContactTokenDetails>>>> chunks = new LinkedList<>();
+
+    for (String token : tokens) {
+      chunk.add(token);
+
+      if (chunk.size() >= chunkSize) {
+        chunks.add(new Pair<>(chunk, executor.submit(new ChunkLookup(accountManager, chunk))));
+        chunk = new HashSet<>();
+      }
+    }
+
+    if (!chunk.isEmpty()) {
+      chunks.add(new Pair<>(chunk, executor.submit(new ChunkLookup(accountManager, chunk))));
+    }
+
+    try {
+      for (Pair<Set<String>, Future<List<ContactTokenDetails>>> pending : chunks) {
+        try {
+          List<ContactTokenDetails> activeTokens = pending.second.get();
+          if (activeTokens != null) result.activeTokens.addAll(activeTokens);
+        } catch (ExecutionException e) {
+          Log.w(TAG, e);
+          result.failedTokens.addAll(pending.first);
+          result.failure = e.getCause() instanceof IOException ? (IOException)e.getCause()
+                                                               : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
       }
+    } finally {
+      executor.shutdown();
+    }
+
+    Log.w(TAG, "Looked up " + tokens.size() + " tokens in " + chunks.size() + " chunks");
+
+    return result;
+  }
+
+  private static class ChunkLookup implements Callable<List<ContactTokenDetails>> {
+    private final TextSecureAccountManager accountManager;
+    private final Set<String>              tokens;
+
+    private ChunkLookup(TextSecureAccountManager accountManager, Set<String> tokens) {
+      this.accountManager = accountManager;
+      this.tokens         = tokens;
+    }
 
-      directory.setNumbers(activeTokens, eligibleContactNumbers);
+    @Override
+    public List<ContactTokenDetails> call() throws IOException {
+      for (int attempt = 1;; attempt++) {
+        try {
+          return accountManager.getContacts(tokens);
+        } catch (PushNetworkException e) {
+          if (attempt >= MAX_CHUNK_ATTEMPTS) throw e;
+          Log.w(TAG, "Directory chunk failed, retrying (" + attempt + ")");
+        }
+      }
     }
   }
 
+  private static class ChunkedResult {
+    private final List<ContactTokenDetails> activeTokens = new LinkedList<>();
+    private final Set<String>               failedTokens = new HashSet<>();
+    private       IOException               failure;
+  }
+
   public static boolean isPushDestination(Context context, Recipients recipients) {
     try {
       if (recipients == null) {
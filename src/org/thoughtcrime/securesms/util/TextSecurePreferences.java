@@ -49,6 +49,8 @@ public class TextSecurePreferences {
   private static final String PROMPTED_DEFAULT_SMS_PREF        = "pref_prompted_default_sms";
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
+  private static final String DIRECTORY_FULL_REFRESH_TIME_PREF = "pref_directory_full_refresh_time";
+  private static final String PART_CLEANUP_TIME_PREF           = "pref_part_cleanup_time";
   private static final String IN_THREAD_NOTIFICATION_PREF      = "pref_key_inthread_notifications";
 
   private static final String LOCAL_REGISTRATION_ID_PREF       = "pref_local_registration_id";
@@ -65,6 +67,8 @@ public class TextSecurePreferences {
 
   private static final String PUSH_REGISTRATION_REMINDER_PREF  = "pref_push_registration_reminder";
   public  static final String REPEAT_ALERTS_PREF               = "pref_repeat_alerts";
+  public  static final String DATABASE_WAL_PREF                = "pref_database_wal";
+  public  static final String QUERY_PROFILING_PREF             = "pref_query_profiling";
 
   public static boolean isWebsocketRegistered(Context context) {
     return getBooleanPreference(context, WEBSOCKET_REGISTERED_PREF, false);
@@ -166,6 +170,30 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getDirectoryFullRefreshTime(Context context) {
+    return getLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, 0L);
+  }
+
+  public static void setDirectoryFullRefreshTime(Context context, long value) {
+    setLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, value);
+  }
+
+  public static boolean isDatabaseWalEnabled(Context context) {
+    return getBooleanPreference(context, DATABASE_WAL_PREF, true);
+  }
+
+  public static boolean isQueryProfilingEnabled(Context context) {
+    return getBooleanPreference(context, QUERY_PROFILING_PREF, false);
+  }
+
+  public static long getPartCleanupTime(Context context) {
+    return getLongPreference(context, PART_CLEANUP_TIME_PREF, 0L);
+  }
+
+  public static void setPartCleanupTime(Context context, long value) {
+    setLongPreference(context, PART_CLEANUP_TIME_PREF, value);
+  }
+
   public static String getLocalNumber(Context context) {
     return getStringPreference(context, LOCAL_NUMBER_PREF, "No Stored Number");
   }
@@ -49,6 +49,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -72,17 +73,25 @@ public class Util {
   }
 
   public static ExecutorService newSingleThreadedLifoExecutor() {
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>());
+    return newLifoExecutor(1);
+  }
 
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-//        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-      }
-    });
+  public static ExecutorService newLifoExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingLifoQueue<Runnable>(),
+                                  new ThreadFactory() {
+                                    @Override
+                                    public Thread newThread(Runnable runnable) {
+                                      Thread thread = new Thread(runnable);
+//                                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                      thread.setPriority(Thread.MIN_PRIORITY);
+                                      return thread;
+                                    }
+                                  });
+  }
 
-    return executor;
+  public static int getBackgroundPoolSize() {
+    return Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
   }
 
   public static boolean isEmpty(EncodedStringValue[] value) {